@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ordering tasks for dispatch and handing them out. Draining the queue
+ * starts its own executor threads like the contention test, each invocation
+ * gets a freshly queued coordinator.
+ *
+ * @author David van Laatum
+ */
+@State ( Scope.Benchmark )
+@OutputTimeUnit ( TimeUnit.MILLISECONDS )
+@Fork ( 1 )
+public class DispatchBenchmark {
+
+  @Param ( { "100", "10000", "1000000" } )
+  public int size;
+  private TaskCoordinator.Task[] tasks;
+
+  @Setup
+  public void setUp () {
+    tasks = TaskLists.tasks ( new TaskCoordinator ( null ), size );
+  }
+
+  /**
+   * Sorts the tasks by Task.compareTo, the ordering queueTasks and every
+   * release of waiting tasks use. Includes copying the array.
+   */
+  @Benchmark
+  @BenchmarkMode ( Mode.AverageTime )
+  @Warmup ( iterations = 3 )
+  @Measurement ( iterations = 5 )
+  public TaskCoordinator.Task[] order () {
+    TaskCoordinator.Task[] o = tasks.clone ();
+    Arrays.sort ( o );
+    return o;
+  }
+
+  /**
+   * Hands out every task to the executors calling getNextTask at once.
+   */
+  @Benchmark
+  @BenchmarkMode ( Mode.SingleShotTime )
+  @Warmup ( iterations = 5 )
+  @Measurement ( iterations = 10 )
+  public int drain ( Queued queued ) throws InterruptedException {
+    final TaskCoordinator tc = queued.coordinator;
+    final int executors = queued.executors;
+    final CountDownLatch start = new CountDownLatch ( 1 );
+    final int[] counts = new int[executors];
+    List<Thread> threads = new ArrayList<Thread> ();
+    for ( int i = 0; i < executors; i++ ) {
+      final int executor = i;
+      Thread t = new Thread () {
+
+        @Override
+        public void run () {
+          try {
+            start.await ();
+          } catch ( InterruptedException ex ) {
+            return;
+          }
+          while ( tc.getNextTask ( executor ) != null ) {
+            counts[executor]++;
+          }
+        }
+      };
+      t.start ();
+      threads.add ( t );
+    }
+    start.countDown ();
+    int rt = 0;
+    for ( int i = 0; i < threads.size (); i++ ) {
+      threads.get ( i ).join ();
+      rt += counts[i];
+    }
+    return rt;
+  }
+
+  @State ( Scope.Benchmark )
+  public static class Queued {
+
+    @Param ( { "100", "10000", "1000000" } )
+    public int size;
+    @Param ( { "1", "8", "64" } )
+    public int executors;
+    private TaskCoordinator coordinator;
+
+    @Setup ( Level.Invocation )
+    public void queue () {
+      coordinator = TaskLists.coordinator ( size );
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the build page and progress API pay per task for durations, over
+ * tasks that are all running so every call reads the clock.
+ *
+ * @author David van Laatum
+ */
+@State ( Scope.Benchmark )
+@BenchmarkMode ( Mode.AverageTime )
+@OutputTimeUnit ( TimeUnit.MICROSECONDS )
+@Warmup ( iterations = 3 )
+@Measurement ( iterations = 5 )
+@Fork ( 1 )
+public class RenderBenchmark {
+
+  @Param ( { "100", "10000", "1000000" } )
+  public int size;
+  private TaskCoordinator.Task[] tasks;
+
+  @Setup
+  public void setUp () {
+    TaskCoordinator tc = TaskLists.coordinator ( size );
+    tasks = tc.getTaskArray ();
+    for ( int i = 0; i < tasks.length; i++ ) {
+      tasks[i].start ( i % 64, false );
+    }
+  }
+
+  @Benchmark
+  public void duration ( Blackhole bh ) {
+    for ( TaskCoordinator.Task t : tasks ) {
+      bh.consume ( t.getDuration () );
+    }
+  }
+
+  @Benchmark
+  public void durationstring ( Blackhole bh ) {
+    for ( TaskCoordinator.Task t : tasks ) {
+      bh.consume ( t.getDurationstring () );
+    }
+  }
+}
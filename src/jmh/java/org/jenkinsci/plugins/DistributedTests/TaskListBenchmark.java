@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of reading a task list: parsing the file alone, and parsing it into
+ * a coordinator up to the dispatch order being fixed. This is the path
+ * readTasks takes without the history lookups, which need a Jenkins
+ * instance.
+ *
+ * @author David van Laatum
+ */
+@State ( Scope.Benchmark )
+@BenchmarkMode ( Mode.AverageTime )
+@OutputTimeUnit ( TimeUnit.MILLISECONDS )
+@Warmup ( iterations = 3 )
+@Measurement ( iterations = 5 )
+@Fork ( 1 )
+public class TaskListBenchmark {
+
+  @Param ( { "100", "10000", "1000000" } )
+  public int size;
+  private String json;
+  private byte[] bytes;
+
+  @Setup
+  public void setUp () throws IOException {
+    json = TaskLists.json ( size );
+    bytes = json.getBytes ( "UTF-8" );
+  }
+
+  @Benchmark
+  public void parse ( Blackhole bh ) throws IOException {
+    TaskListReader reader = new TaskListReader ( new StringReader ( json ) );
+    for ( TaskListReader.Entry e = reader.next (); e != null; e = reader
+            .next () ) {
+      bh.consume ( e );
+    }
+  }
+
+  @Benchmark
+  public TaskCoordinator load () throws IOException {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    TaskListReader reader = new TaskListReader ( new InputStreamReader (
+            new ByteArrayInputStream ( bytes ), "UTF-8" ) );
+    for ( TaskListReader.Entry e = reader.next (); e != null; e = reader
+            .next () ) {
+      tc.addTask ( tc.new Task ( e.getName (), e.getEnv (), e
+                                 .getDependsOn () ) );
+    }
+    tc.queueTasks ();
+    return tc;
+  }
+}
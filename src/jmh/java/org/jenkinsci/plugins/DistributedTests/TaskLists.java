@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Synthetic task lists for the benchmarks, the same for the same size.
+ * Predicted durations follow a long tailed spread like a real test suite,
+ * most tasks take seconds and a few take many minutes.
+ *
+ * @author David van Laatum
+ */
+final class TaskLists {
+
+  private static final long SEED = 42;
+
+  private TaskLists () {
+  }
+
+  /**
+   * @return a task list file with the given number of tasks, each with a
+   *         couple of environment variables
+   */
+  static String json ( int size ) {
+    StringBuilder sb = new StringBuilder ( size * 80 );
+    sb.append ( "[\n" );
+    for ( int i = 0; i < size; i++ ) {
+      sb.append ( i > 0 ? ",\n" : "" )
+              .append ( "  { \"name\": \"" ).append ( name ( i ) )
+              .append ( "\", \"env\": { \"TEST\": \"" ).append ( name ( i ) )
+              .append ( "\", \"SHARD\": " ).append ( i % 16 ).append ( " } }" );
+    }
+    return sb.append ( "\n]\n" ).toString ();
+  }
+
+  /**
+   * @return tasks with predicted durations, not queued
+   */
+  static TaskCoordinator.Task[] tasks ( TaskCoordinator tc, int size ) {
+    Random r = new Random ( SEED );
+    TaskCoordinator.Task[] rt = new TaskCoordinator.Task[size];
+    for ( int i = 0; i < size; i++ ) {
+      rt[i] = tc.new Task ( name ( i ), Collections
+                            .<String, String>emptyMap () );
+      rt[i].setPredictedDuration ( (long) ( 1000 * Math.exp ( r
+              .nextGaussian () * 1.5 + 2 ) ) );
+    }
+    return rt;
+  }
+
+  /**
+   * @return a coordinator with the tasks queued and ready to hand out
+   */
+  static TaskCoordinator coordinator ( int size ) {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    for ( TaskCoordinator.Task t : tasks ( tc, size ) ) {
+      tc.addTask ( t );
+    }
+    tc.queueTasks ();
+    return tc;
+  }
+
+  private static String name ( int i ) {
+    return "com.example.module" + i % 100 + ".Test" + i;
+  }
+}
@@ -0,0 +1,487 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import hudson.model.Result;
+
+/**
+ * Where the wall clock time of a distributed build went, one lane per
+ * executor built from the times its stages started, the time it spent
+ * running tasks and the tasks it completed.
+ *
+ * @author David van Laatum
+ */
+public class BuildTimeline {
+
+  /**
+   * Tasks narrower than this fraction of the timeline are drawn together
+   * with their neighbours, so a lane of thousands of short tasks stays a few
+   * hundred elements.
+   */
+  static final int RESOLUTION = 500;
+  private static final Comparator<Segment> BY_START
+          = new Comparator<Segment> () {
+
+            @Override
+            public int compare ( Segment a, Segment b ) {
+              return a.start < b.start ? -1 : a.start > b.start ? 1 : 0;
+            }
+          };
+
+  private final long start;
+  private final long end;
+  private final long queued;
+  private final List<Lane> lanes = new ArrayList<Lane> ();
+  private DistributedBuild build;
+
+  /**
+   * @param queued when the executors were queued, 0 if unknown
+   */
+  public BuildTimeline ( long start, long end, long queued ) {
+    this.start = start;
+    this.end = Math.max ( start, end );
+    this.queued = queued;
+  }
+
+  /**
+   * @return the timeline of a build, up to now if it is still running
+   */
+  public static BuildTimeline of ( DistributedBuild build ) {
+    long now = System.currentTimeMillis ();
+    long start = build.getStartTimeInMillis ();
+    long end = build.isBuilding () ? now : start + build.getDuration ();
+    BuildTimeline rt = new BuildTimeline ( start, end, build
+                                           .getExecutorsQueued () );
+    rt.build = build;
+    TaskCoordinator co = build.getCoordinator ();
+    Map<Integer, List<TaskCoordinator.Task>> byExecutor
+            = new HashMap<Integer, List<TaskCoordinator.Task>> ();
+    for ( TaskCoordinator.Task t : co != null ? co.getTaskArray ()
+                                   : new TaskCoordinator.Task[0] ) {
+      Integer executor = t.getExecutor ();
+      if ( executor == null || t.getStarted () == null ) {
+        continue;
+      }
+      List<TaskCoordinator.Task> l = byExecutor.get ( executor );
+      if ( l == null ) {
+        l = new ArrayList<TaskCoordinator.Task> ();
+        byExecutor.put ( executor, l );
+      }
+      l.add ( t );
+    }
+    for ( DistributedRun r : build.getRuns () ) {
+      long started = r.getStartTimeInMillis ();
+      long finished = r.isBuilding () ? now : started + r.getDuration ();
+      long[] stages = new long[BuildStage.values ().length];
+      for ( BuildStage s : BuildStage.values () ) {
+        stages[s.ordinal ()] = r.getStageTime ( s );
+      }
+      Lane lane = new Lane ( r.getProject ().getDisplayName (), r.getUrl (),
+                             started, finished, stages, r.getBusyTime () );
+      List<TaskCoordinator.Task> l = byExecutor.get ( r.getProject ()
+              .getNumber () );
+      for ( int i = 0; l != null && i < l.size (); i++ ) {
+        TaskCoordinator.Task t = l.get ( i );
+        Date from = t.getStarted ();
+        if ( t.isRunning () ) {
+          lane.addTask ( t.getName (), from.getTime (), now, null );
+        } else if ( t.hasRun () && t.getFinished () != null ) {
+          lane.addTask ( t.getName (), from.getTime (), t.getFinished ()
+                         .getTime (), t.getResult ().isWorseThan (
+                                 Result.UNSTABLE ) );
+        }
+      }
+      rt.addLane ( lane );
+    }
+    return rt;
+  }
+
+  public void addLane ( Lane lane ) {
+    lanes.add ( lane );
+    lane.timeline = this;
+  }
+
+  /**
+   * @return the build the timeline is of, null if it was built by hand
+   */
+  public DistributedBuild getBuild () {
+    return build;
+  }
+
+  public List<Lane> getLanes () {
+    return Collections.unmodifiableList ( lanes );
+  }
+
+  public long getStart () {
+    return start;
+  }
+
+  public long getEnd () {
+    return end;
+  }
+
+  /**
+   * @return when the last task finished, 0 if none has
+   */
+  public long getTasksDone () {
+    long rt = 0;
+    for ( Lane l : lanes ) {
+      rt = Math.max ( rt, l.getLastFinish () );
+    }
+    return rt;
+  }
+
+  /**
+   * @return time from the first task starting to the last finishing
+   */
+  public long getMakespan () {
+    long first = Long.MAX_VALUE;
+    for ( Lane l : lanes ) {
+      for ( Segment s : l.tasks ) {
+        first = Math.min ( first, s.start );
+      }
+    }
+    long done = getTasksDone ();
+    return first != Long.MAX_VALUE && done > first ? done - first : 0;
+  }
+
+  /**
+   * @return the shortest the tasks could have taken on these executors, the
+   *         work spread evenly or the longest task whichever is longer
+   */
+  public long getIdealMakespan () {
+    if ( lanes.isEmpty () ) {
+      return 0;
+    }
+    long work = 0;
+    long longest = 0;
+    for ( Lane l : lanes ) {
+      for ( Segment s : l.tasks ) {
+        work += s.getDuration ();
+        longest = Math.max ( longest, s.getDuration () );
+      }
+    }
+    return Math.max ( work / lanes.size (), longest );
+  }
+
+  /**
+   * @return ideal over achieved makespan as a percentage
+   */
+  public int getEfficiency () {
+    long makespan = getMakespan ();
+    return makespan > 0 ? (int) ( getIdealMakespan () * 100 / makespan ) : 0;
+  }
+
+  /**
+   * @return the lanes' times added up, queue wait, setup, busy, idle, tail
+   *         idle and sync in that order
+   */
+  public long[] getTotals () {
+    long[] rt = new long[6];
+    for ( Lane l : lanes ) {
+      rt[0] += l.getQueueWait ();
+      rt[1] += l.getSetup ();
+      rt[2] += l.getBusy ();
+      rt[3] += l.getIdle ();
+      rt[4] += l.getTailIdle ();
+      rt[5] += l.getSync ();
+    }
+    return rt;
+  }
+
+  /**
+   * @return time spent in tasks as a percentage of the time executors ran
+   */
+  public int getUtilization () {
+    long span = 0;
+    long busy = 0;
+    for ( Lane l : lanes ) {
+      span += l.end - l.started;
+      busy += l.getBusy ();
+    }
+    return span > 0 ? (int) ( busy * 100 / span ) : 0;
+  }
+
+  /**
+   * @return the time as a percentage of the way along the timeline
+   */
+  public double position ( long time ) {
+    long span = end - start;
+    if ( span <= 0 ) {
+      return 0;
+    }
+    return Math.max ( 0, Math.min ( 100, ( time - start ) * 100.0 / span ) );
+  }
+
+  public static String duration ( long ms ) {
+    return TaskCoordinator.durationString ( ms );
+  }
+
+  /**
+   * One executor's time.
+   */
+  public static class Lane {
+
+    private final String name;
+    private final String url;
+    private final long started;
+    private final long end;
+    private final long[] stages;
+    private final long busy;
+    private final List<Segment> tasks = new ArrayList<Segment> ();
+    private BuildTimeline timeline;
+
+    /**
+     * @param stages when each stage was entered by ordinal, 0 if it was not
+     * @param busy   time spent in tasks, 0 to use the completed tasks' times
+     */
+    public Lane ( String name, String url, long started, long end,
+                  long[] stages, long busy ) {
+      this.name = name;
+      this.url = url;
+      this.started = started;
+      this.end = Math.max ( started, end );
+      this.stages = stages;
+      this.busy = busy;
+    }
+
+    /**
+     * @param failed null if the task is still running
+     */
+    public void addTask ( String name, long start, long finish,
+                          Boolean failed ) {
+      tasks.add ( new Segment ( name, start, finish, failed == null
+                                                     ? "running"
+                                                     : failed ? "failed"
+                                                       : "task" ) );
+    }
+
+    public String getName () {
+      return name;
+    }
+
+    public String getUrl () {
+      return url;
+    }
+
+    private long stage ( BuildStage s ) {
+      return stages[s.ordinal ()];
+    }
+
+    /**
+     * @return when the stage after the given one started, the end if none
+     */
+    private long after ( BuildStage s ) {
+      BuildStage[] all = BuildStage.values ();
+      for ( int i = s.ordinal () + 1; i < all.length; i++ ) {
+        if ( stages[i] != 0 ) {
+          return stages[i];
+        }
+      }
+      return end;
+    }
+
+    /**
+     * @return time between the executors being queued and this one starting
+     */
+    public long getQueueWait () {
+      return timeline.queued > 0 ? Math.max ( 0, started - timeline.queued )
+             : 0;
+    }
+
+    /**
+     * @return time from starting to running tasks, checkout and setup steps
+     */
+    public long getSetup () {
+      long running = stage ( BuildStage.Running );
+      return Math.max ( 0, ( running != 0 ? running : after (
+                             BuildStage.Setup ) ) - started );
+    }
+
+    /**
+     * @return time spent running tasks
+     */
+    public long getBusy () {
+      if ( busy > 0 ) {
+        return busy;
+      }
+      long rt = 0;
+      for ( Segment s : tasks ) {
+        rt += s.getDuration ();
+      }
+      return rt;
+    }
+
+    /**
+     * @return time in the running stage not spent in tasks, waiting for
+     *         tasks to become available
+     */
+    public long getIdle () {
+      long running = stage ( BuildStage.Running );
+      if ( running == 0 ) {
+        return 0;
+      }
+      return Math.max ( 0, after ( BuildStage.Running ) - running - getBusy () );
+    }
+
+    /**
+     * @return time between this executor's last task and the build's last
+     *         task finishing, capacity left unused once the queue drained
+     */
+    public long getTailIdle () {
+      long last = getLastFinish ();
+      long done = timeline.getTasksDone ();
+      return last > 0 && done > last ? done - last : 0;
+    }
+
+    /**
+     * @return time spent syncing files to the master
+     */
+    public long getSync () {
+      long sync = stage ( BuildStage.SyncingFiles );
+      return sync != 0 ? Math.max ( 0, after ( BuildStage.SyncingFiles )
+                                       - sync ) : 0;
+    }
+
+    /**
+     * @return busy time as a percentage of the time the executor ran
+     */
+    public int getUtilization () {
+      long span = end - started;
+      return span > 0 ? (int) ( getBusy () * 100 / span ) : 0;
+    }
+
+    long getLastFinish () {
+      long rt = 0;
+      for ( Segment s : tasks ) {
+        rt = Math.max ( rt, s.finish );
+      }
+      return rt;
+    }
+
+    /**
+     * @return the lane's stages and tasks in time order, short tasks joined
+     *         with their neighbours
+     */
+    public List<Segment> getSegments () {
+      List<Segment> rt = new ArrayList<Segment> ();
+      if ( timeline.queued > 0 && started > timeline.queued ) {
+        rt.add ( new Segment ( "Queued", timeline.queued, started, "queue" ) );
+      }
+      long running = stage ( BuildStage.Running );
+      rt.add ( new Segment ( "Setup", started, running != 0 ? running : after (
+                             BuildStage.Setup ), "setup" ) );
+      rt.addAll ( merge ( tasks, ( timeline.end - timeline.start )
+                                 / RESOLUTION ) );
+      long sync = stage ( BuildStage.SyncingFiles );
+      if ( sync != 0 ) {
+        rt.add ( new Segment ( "Syncing files", sync, after (
+                               BuildStage.SyncingFiles ), "sync" ) );
+      }
+      long post = stage ( BuildStage.Post );
+      if ( post != 0 ) {
+        rt.add ( new Segment ( "Post", post, end, "post" ) );
+      }
+      for ( Segment s : rt ) {
+        s.timeline = timeline;
+      }
+      return rt;
+    }
+
+    /**
+     * Joins neighbouring tasks where one of them is shorter than the given
+     * width and the gap between them is no wider, a joined stretch shows
+     * as failed if any of its tasks failed.
+     *
+     * @return the tasks in time order
+     */
+    static List<Segment> merge ( List<Segment> tasks, long width ) {
+      List<Segment> sorted = new ArrayList<Segment> ( tasks );
+      Collections.sort ( sorted, BY_START );
+      List<Segment> rt = new ArrayList<Segment> ( sorted.size () );
+      Segment cur = null;
+      int count = 0;
+      for ( Segment s : sorted ) {
+        if ( cur != null && s.start - cur.finish <= width && ( cur
+                .getDuration () < width || s.getDuration () < width ) ) {
+          count++;
+          cur = new Segment ( count + " tasks", cur.start, Math.max (
+                              cur.finish, s.finish ), worse ( cur.kind,
+                                                              s.kind ) );
+        } else {
+          if ( cur != null ) {
+            rt.add ( cur );
+          }
+          cur = s;
+          count = 1;
+        }
+      }
+      if ( cur != null ) {
+        rt.add ( cur );
+      }
+      return rt;
+    }
+
+    private static String worse ( String a, String b ) {
+      for ( String kind : new String[]{ "failed", "running" } ) {
+        if ( kind.equals ( a ) || kind.equals ( b ) ) {
+          return kind;
+        }
+      }
+      return a;
+    }
+  }
+
+  /**
+   * A stretch of a lane.
+   */
+  public static class Segment {
+
+    private final String name;
+    private final long start;
+    private final long finish;
+    private final String kind;
+    private BuildTimeline timeline;
+
+    Segment ( String name, long start, long finish, String kind ) {
+      this.name = name;
+      this.start = start;
+      this.finish = Math.max ( start, finish );
+      this.kind = kind;
+    }
+
+    public String getName () {
+      return name;
+    }
+
+    public long getDuration () {
+      return finish - start;
+    }
+
+    /**
+     * @return queue, setup, task, failed, running, sync or post
+     */
+    public String getKind () {
+      return kind;
+    }
+
+    /**
+     * @return where the segment starts as a percentage along the timeline
+     */
+    public double getLeft () {
+      return timeline.position ( start );
+    }
+
+    /**
+     * @return the segment's length as a percentage of the timeline
+     */
+    public double getWidth () {
+      return timeline.position ( finish ) - timeline.position ( start );
+    }
+  }
+}
@@ -6,9 +6,13 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.google.common.collect.ImmutableList;
@@ -29,6 +33,8 @@ import hudson.tasks.Publisher;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import jenkins.model.ModelObjectWithChildren;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
@@ -45,9 +51,29 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
   private static final Logger LOG
           = Logger.getLogger ( DistributedBuild.class.getName () );
   private static final Jenkins JENKINS = Jenkins.getInstance ();
+  /**
+   * Most tasks sent in one progress response.
+   */
+  private static final int MAX_PAGE = 1000;
+  /**
+   * How long an estimated finish is reused before the queue is simulated
+   * again.
+   */
+  private static final long ESTIMATE_INTERVAL = TimeUnit.SECONDS.toMillis (
+          5 );
 
   private TaskCoordinator coordinator = new TaskCoordinator ( this );
-  private transient List<DistributedRun> runs = new ArrayList<DistributedRun> ();
+  private TestReport testReport;
+  private long executorsQueued;
+  private transient List<DistributedRun> runs
+          = new CopyOnWriteArrayList<DistributedRun> ();
+  /**
+   * Executors queued that have neither started nor been cancelled.
+   */
+  private transient volatile int pendingExecutors;
+  private transient volatile long estimatedFinish;
+  private transient volatile long estimated;
+  private transient volatile Long tail;
 
   public DistributedBuild ( DistributedProject job ) throws IOException {
     super ( job );
@@ -96,7 +122,19 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
   }
 
   public DistributedRun getRun ( String id ) {
-    return runs.get ( Integer.parseInt ( id ) );
+    return getRun ( Integer.parseInt ( id ) );
+  }
+
+  /**
+   * @return the run of the given executor, null if it did not start
+   */
+  public DistributedRun getRun ( int executor ) {
+    for ( DistributedRun r : runs ) {
+      if ( r.getProject ().getNumber () == executor ) {
+        return r;
+      }
+    }
+    return null;
   }
 
   @Exported
@@ -113,6 +151,227 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
     }
   }
 
+  /**
+   * @return when the executors were queued, 0 if they were not or the build
+   *         predates recording it
+   */
+  public long getExecutorsQueued () {
+    return executorsQueued;
+  }
+
+  /**
+   * @return when the build is expected to finish, from a simulation of the
+   *         tasks left over the executors still running plus the time the
+   *         last build took after its tasks, 0 if it is not running or
+   *         nothing is known yet
+   */
+  @Exported
+  public long getEstimatedFinish () {
+    TaskCoordinator co = getCoordinator ();
+    if ( !isBuilding () || co == null ) {
+      return 0;
+    }
+    long now = System.currentTimeMillis ();
+    if ( now - estimated > ESTIMATE_INTERVAL ) {
+      long finish = co.estimateFinish ( getRuns (), pendingExecutors, now );
+      estimatedFinish = finish > 0 ? finish + getTail () : 0;
+      estimated = now;
+    }
+    return estimatedFinish;
+  }
+
+  /**
+   * @return the longest chain of predicted durations among the tasks left,
+   *         0 if it is not running
+   */
+  @Exported
+  public long getRemainingCriticalPath () {
+    TaskCoordinator co = getCoordinator ();
+    return isBuilding () && co != null ? co.getRemainingCriticalPath () : 0;
+  }
+
+  /**
+   * Estimates from the tasks left once they are known, rather than from the
+   * duration of the last build.
+   */
+  @Override
+  public long getEstimatedDuration () {
+    long finish = getEstimatedFinish ();
+    return finish > 0 ? finish - getStartTimeInMillis () : super
+            .getEstimatedDuration ();
+  }
+
+  /**
+   * @return how long the last completed build ran after its last task
+   *         finished, syncing files and running post steps
+   */
+  private long getTail () {
+    Long t = tail;
+    if ( t == null ) {
+      t = 0L;
+      DistributedBuild prev = getPreviousCompletedBuild ();
+      TaskCoordinator co = prev != null ? prev.getCoordinator () : null;
+      if ( co != null ) {
+        long done = 0;
+        for ( TaskCoordinator.Task task : co.getTaskArray () ) {
+          Date finished = task.getFinished ();
+          if ( finished != null ) {
+            done = Math.max ( done, finished.getTime () );
+          }
+        }
+        if ( done > 0 ) {
+          t = Math.max ( 0, prev.getStartTimeInMillis () + prev.getDuration ()
+                            - done );
+        }
+      }
+      tail = t;
+    }
+    return t;
+  }
+
+  /**
+   * @return counts from the test reports executors have synced so far, null
+   *         if the project does not collect them
+   */
+  public TestReport getTestReport () {
+    return testReport;
+  }
+
+  /**
+   * Serves the build's progress as JSON for the build page. Tasks changed
+   * after the since version are listed, all of them without it or when the
+   * version is from before a restart, in name order a page at a time. Poll
+   * with the returned version to get only what changed since.
+   */
+  public void doProgress ( StaplerRequest req, StaplerResponse rsp ) throws
+          IOException {
+    TaskCoordinator co = getCoordinator ();
+    int since = intParameter ( req, "since", 0 );
+    int offset = Math.max ( 0, intParameter ( req, "offset", 0 ) );
+    int limit = Math.min ( MAX_PAGE, Math.max ( 1, intParameter (
+                           req, "limit", MAX_PAGE ) ) );
+    JSONObject rt = new JSONObject ();
+    JSONArray tasks = new JSONArray ();
+    int version = 0;
+    boolean full = true;
+    int matched = 0;
+    int total = 0;
+    int running = 0;
+    int completed = 0;
+    int failed = 0;
+    if ( co != null ) {
+      version = co.getVersion ();
+      full = since <= 0 || since > version;
+      TaskCoordinator.Task[] all = co.getTaskArray ();
+      TaskCoordinator.Task[] changes = full ? all : co.getChanges ( all,
+                                                                    since );
+      matched = changes.length;
+      for ( int i = offset; i < changes.length && i < offset + limit; i++ ) {
+        tasks.add ( toJSON ( changes[i] ) );
+      }
+      for ( TaskCoordinator.Task t : all ) {
+        total++;
+        if ( t.isRunning () ) {
+          running++;
+        } else if ( t.hasRun () ) {
+          completed++;
+          if ( t.getResult ().isWorseThan ( Result.UNSTABLE ) ) {
+            failed++;
+          }
+        }
+      }
+    }
+    JSONArray executors = new JSONArray ();
+    for ( DistributedRun r : runs ) {
+      JSONObject e = new JSONObject ();
+      e.element ( "name", r.getProject ().getDisplayName () );
+      e.element ( "url", r.getUrl () );
+      e.element ( "node", r.getBuiltOnStr () );
+      e.element ( "status", r.getBuildStatusUrl () );
+      e.element ( "stage", r.getStage () != null ? r.getStage ()
+              .getDescription () : "" );
+      TaskCoordinator.Task current = r.getCurrentTask ();
+      if ( current != null ) {
+        List<TaskCoordinator.Task> batch = r.getCurrentTasks ();
+        e.element ( "task", current.getName () );
+        e.element ( "batch", batch != null ? batch.size () : 1 );
+        e.element ( "duration", current.getDuration () );
+      }
+      executors.add ( e );
+    }
+    rt.element ( "version", version );
+    rt.element ( "full", full );
+    rt.element ( "building", isBuilding () );
+    rt.element ( "offset", offset );
+    rt.element ( "matched", matched );
+    rt.element ( "total", total );
+    rt.element ( "running", running );
+    rt.element ( "completed", completed );
+    rt.element ( "failed", failed );
+    long eta = getEstimatedFinish ();
+    if ( eta > 0 ) {
+      rt.element ( "eta", eta );
+      rt.element ( "remaining", Math.max ( 0, eta - System
+                   .currentTimeMillis () ) );
+    }
+    rt.element ( "executors", executors );
+    rt.element ( "tasks", tasks );
+    rsp.setContentType ( "application/json;charset=UTF-8" );
+    rsp.setHeader ( "Cache-Control", "no-cache" );
+    rsp.getWriter ().print ( rt.toString () );
+  }
+
+  private static JSONObject toJSON ( TaskCoordinator.Task t ) {
+    JSONObject rt = new JSONObject ();
+    rt.element ( "name", t.getName () );
+    if ( t.getExecutor () != null ) {
+      rt.element ( "executor", t.getExecutor () + 1 );
+    }
+    Date started = t.getStarted ();
+    if ( started != null ) {
+      rt.element ( "started", started.getTime () );
+    }
+    Date finished = t.getFinished ();
+    if ( finished != null ) {
+      rt.element ( "finished", finished.getTime () );
+    }
+    Long duration = t.getDuration ();
+    if ( duration != null ) {
+      rt.element ( "duration", duration );
+    }
+    Long diff = t.getDurationDiff ();
+    if ( diff != null ) {
+      rt.element ( "diff", diff );
+    }
+    rt.element ( "status", t.isRunning () ? "RUNNING" : t.getResult ()
+            .toString () );
+    return rt;
+  }
+
+  private static int intParameter ( StaplerRequest req, String name,
+                                    int def ) {
+    String v = req.getParameter ( name );
+    if ( v == null ) {
+      return def;
+    }
+    try {
+      return Integer.parseInt ( v );
+    } catch ( NumberFormatException ex ) {
+      return def;
+    }
+  }
+
+  public TaskCoordinator getCoordinator () {
+    return getAction ( TaskCoordinator.class );
+  }
+
+  /**
+   * @return where the executors' time went, served at timeline/
+   */
+  public BuildTimeline getTimeline () {
+    return BuildTimeline.of ( this );
+  }
+
   public TaskInfo getTask ( String name ) {
     TaskCoordinator co = getAction ( TaskCoordinator.class );
     if ( co != null ) {
@@ -130,7 +389,14 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
   @Override
   protected void onLoad () {
     super.onLoad ();
-    runs = new ArrayList<DistributedRun> ();
+    if ( coordinator != null ) {
+      coordinator.onLoad ( this );
+    }
+    TaskCoordinator co = getAction ( TaskCoordinator.class );
+    if ( co != null && co != coordinator ) {
+      co.onLoad ( this );
+    }
+    runs = new CopyOnWriteArrayList<DistributedRun> ();
     for ( DistributedTask task : getParent ().getItems () ) {
       DistributedRun buildByNumber = task.getBuildByNumber ( getNumber () );
       if ( buildByNumber != null ) {
@@ -139,6 +405,27 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
     }
   }
 
+  @Override
+  public synchronized void save () throws IOException {
+    if ( coordinator != null ) {
+      coordinator.saveTasks ( getRootDir () );
+    }
+    super.save ();
+  }
+
+  /**
+   * Removes executors that have not started from the queue, ones that
+   * started in the meantime are picked up on the next pass.
+   */
+  private static void cancel ( Map<DistributedTask, ScheduleResult> pending ) {
+    for ( Iterator<ScheduleResult> p = pending.values ().iterator (); p
+          .hasNext (); ) {
+      if ( p.next ().getItem ().getFuture ().cancel ( false ) ) {
+        p.remove ();
+      }
+    }
+  }
+
   @Override
   public void run () {
     execute ( new DistributedExecutor () );
@@ -163,10 +450,10 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
                                                              RunnerAbortedException {
       Result rt = SUCCESS;
       Exception e = null;
-      Queue queue = JENKINS.getQueue ();
-      List<ScheduleResult> results
-              = new ArrayList<ScheduleResult> ( getProject ().getExecutors () );
-      Collection<DistributedTask> subtasks = getProject ().getItems ();
+      Map<DistributedTask, ScheduleResult> pending
+              = new LinkedHashMap<DistributedTask, ScheduleResult> ();
+      boolean early = getProject ().isEarlyExecutors ();
+      boolean listed = false;
 
       if ( getProject ().getTasklistfile () == null || getProject ()
               .getTasklistfile ().isEmpty () ) {
@@ -175,104 +462,113 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
 
       coordinator.setListener ( listener );
       addAction ( coordinator );
-
-      if ( build ( listener, getProject ().getSetupBuilders () ) ) {
-        listener.getLogger ().println (
-                "Setup complete starting master only steps" );
-
-        if ( build ( listener, getProject ().getMasterBuilders () ) ) {
-          InputStream tasks = getWorkspace ().child ( getProject ()
-                  .getTasklistfile () ).read ();
-          try {
-            coordinator.readTasks ( tasks );
-          } finally {
-            if ( tasks != null ) {
-              tasks.close ();
-            }
+      String reports = getProject ().getTestReports ();
+      testReport = reports != null ? new TestReport ( reports ) : null;
+      SyncReceiver receiver = new SyncReceiver ( getWorkspace (), getProject ()
+              .getSyncConcurrency (), getProject ().getSyncBandwidth ()
+                                      * 1024L * 1024L, testReport );
+      coordinator.setReceiver ( receiver );
+
+      WorkspaceSnapshot snapshot = null;
+      try {
+        if ( getProject ().isWorkspaceSnapshot () ) {
+          snapshot = new WorkspaceSnapshot ( new File (
+                  getRootDir (), WorkspaceSnapshot.FILE ) );
+          coordinator.setSnapshot ( snapshot );
+          if ( !getProject ().isSnapshotMasterOutputs () ) {
+            createSnapshot ( listener, snapshot );
           }
+        }
 
+        if ( early ) {
+          // executors check out and run their setup while the master only
+          // steps build the task list, then wait for tasks
+          coordinator.startLoading ();
           listener.getLogger ().println ( "Starting executors" );
-
           try {
-            Action revisionaction = null;
-            if ( getChangeSet () instanceof SubversionChangeLogSet ) {
-              List<SubversionSCM.SvnInfo> revs
-                      = new ArrayList<SubversionSCM.SvnInfo> ();
-              for ( Map.Entry<String, Long> rev
-                            : ( (SubversionChangeLogSet) getChangeSet () )
-                      .getRevisionMap ().entrySet () ) {
-                revs.add ( new SubversionSCM.SvnInfo ( rev.getKey (),
-                                                       rev.getValue () ) );
-              }
-              revisionaction = new RevisionParameterAction ( revs );
-            } else {
-              listener.error ( "Unsupported SCM, workspaces may not match!" );
-            }
-            ParametersAction parameters = getAction ( ParametersAction.class );
-            for ( DistributedTask t : subtasks ) {
-              List<Action> actions = new ArrayList<Action> ();
-              actions.add ( coordinator );
-              if ( parameters != null ) {
-                actions.add ( new ParametersAction ( parameters
-                        .getParameters () ) );
-              }
-              if ( revisionaction != null ) {
-                actions.add ( revisionaction );
-              }
-              ScheduleResult sc = queue.schedule2 ( t, 0, actions );
-              if ( sc.isRefused () ) {
-                for ( ScheduleResult sc2 : results ) {
-                  sc2.getItem ().getFuture ().cancel ( false );
-                }
-                throw new IllegalStateException ( "Failed to queue task" );
-              }
-              results.add ( sc );
-              if ( results.size () >= getProject ().getExecutors () ) {
-                break;
-              }
-            }
-
-            for ( ScheduleResult sc : results ) {
-              sc.getItem ().getFuture ().waitForStart ();
-            }
+            scheduleExecutors ( listener, pending );
           } catch ( IllegalStateException ex ) {
             listener.getLogger ().println ( ex );
+            coordinator.abortLoading ();
             e = ex;
           }
+        }
 
-          for ( DistributedTask t : subtasks ) {
-            DistributedRun lastBuild = t.getBuildByNumber ( getNumber () );
-            if ( lastBuild != null ) {
-              runs.add ( lastBuild );
+        if ( build ( listener, getProject ().getSetupBuilders () ) ) {
+          listener.getLogger ().println (
+                  "Setup complete starting master only steps" );
+
+          if ( build ( listener, getProject ().getMasterBuilders () ) ) {
+            listed = true;
+            if ( snapshot != null ) {
+              createSnapshot ( listener, snapshot );
+            }
+            if ( !early ) {
+              coordinator.startLoading ();
+              listener.getLogger ().println ( "Starting executors" );
+              try {
+                scheduleExecutors ( listener, pending );
+              } catch ( IllegalStateException ex ) {
+                listener.getLogger ().println ( ex );
+                coordinator.abortLoading ();
+                e = ex;
+              }
             }
-          }
 
-          save ();
-
-          @SuppressWarnings ( "unchecked" )
-          List<DistributedRun> localruns = new ArrayList ( runs );
-
-          boolean done = false;
-          while ( !done ) {
-            Thread.sleep ( 1000 );
-            done = true;
-            for ( Iterator<DistributedRun> r = localruns.iterator (); r
-                  .hasNext (); ) {
-              DistributedRun lastBuild = r.next ();
-              if ( lastBuild.isBuilding () ) {
-                done = false;
-              } else {
-                r.remove ();
-                if ( lastBuild.getResult () != SUCCESS ) {
-                  rt = lastBuild.getResult ();
+            // executors pick up tasks while the rest of the list is read
+            if ( e == null ) {
+              try {
+                InputStream tasks = getWorkspace ().child ( getProject ()
+                        .getTasklistfile () ).read ();
+                try {
+                  coordinator.readTasks ( tasks );
+                } finally {
+                  if ( tasks != null ) {
+                    tasks.close ();
+                  }
                 }
-                listener.hyperlink ( "/" + lastBuild.getUrl (), lastBuild
-                                     .getProject ().getDisplayName () );
-                listener.getLogger ().print ( " " );
-                listener.getLogger ().println ( lastBuild.getResult () );
+              } catch ( IOException ex ) {
+                listener.error ( "Failed to read task list: " + ex
+                        .getMessage () );
+                coordinator.abortLoading ();
+                e = ex;
+              } catch ( IllegalArgumentException ex ) {
+                listener.error ( "Invalid task list: " + ex.getMessage () );
+                coordinator.abortLoading ();
+                e = ex;
               }
             }
+          } else {
+            listener.error ( "Master builders failed" );
+            rt = Result.FAILURE;
           }
+        } else {
+          listener.error ( "Setup failed" );
+          rt = Result.FAILURE;
+        }
+
+        if ( early && !listed ) {
+          // there will be no task list, let the executors finish
+          coordinator.abortLoading ();
+        }
+        if ( snapshot != null ) {
+          snapshot.cancel ();
+        }
+
+        save ();
+
+        Result executors = waitForExecutors ( listener, pending );
+        coordinator.setReceiver ( null );
+        receiver.report ( listener );
+        if ( testReport != null ) {
+          listener.getLogger ().println ( "Test reports: " + testReport );
+        }
+        if ( snapshot != null ) {
+          snapshot.delete ();
+        }
+        if ( listed ) {
+          rt = executors;
+          coordinator.reportAffinity ();
 
           if ( e != null ) {
             throw e;
@@ -284,17 +580,158 @@ public class DistributedBuild extends AbstractBuild<DistributedProject, Distribu
             listener.error ( "Post builders failed" );
             rt = Result.FAILURE;
           }
-        } else {
-          listener.error ( "Master builders failed" );
-          rt = Result.FAILURE;
+        } else if ( e != null ) {
+          throw e;
+        }
+
+        getProject ().resizeSubTasks ();
+
+        return rt;
+      } finally {
+        if ( snapshot != null ) {
+          // an aborted build releases the executors still waiting for it
+          // and leaves nothing behind in the build directory
+          snapshot.cancel ();
+          snapshot.delete ();
+        }
+      }
+    }
+
+    private void createSnapshot ( BuildListener listener,
+                                  WorkspaceSnapshot snapshot ) throws
+            InterruptedException {
+      try {
+        snapshot.create ( getWorkspace (), listener );
+      } catch ( IOException ex ) {
+        listener.error ( "Failed to create workspace snapshot, executors will"
+                         + " check out from the SCM: " + ex.getMessage () );
+        if ( !( getChangeSet () instanceof SubversionChangeLogSet ) ) {
+          listener.error ( "Unsupported SCM, workspaces may not match!" );
         }
-      } else {
-        listener.error ( "Setup failed" );
-        rt = Result.FAILURE;
       }
+    }
 
-      getProject ().resizeSubTasks ();
+    /**
+     * Queues the executors, they share the build's coordinator, parameters
+     * and revisions.
+     */
+    private void scheduleExecutors ( BuildListener listener,
+                                     Map<DistributedTask, ScheduleResult> pending ) {
+      executorsQueued = System.currentTimeMillis ();
+      Queue queue = JENKINS.getQueue ();
+      Action revisionaction = null;
+      if ( getChangeSet () instanceof SubversionChangeLogSet ) {
+        List<SubversionSCM.SvnInfo> revs
+                = new ArrayList<SubversionSCM.SvnInfo> ();
+        for ( Map.Entry<String, Long> rev
+                      : ( (SubversionChangeLogSet) getChangeSet () )
+                .getRevisionMap ().entrySet () ) {
+          revs.add ( new SubversionSCM.SvnInfo ( rev.getKey (),
+                                                 rev.getValue () ) );
+        }
+        revisionaction = new RevisionParameterAction ( revs );
+      } else if ( coordinator.getSnapshot () == null ) {
+        // a snapshot that fails to be made warns in createSnapshot
+        listener.error ( "Unsupported SCM, workspaces may not match!" );
+      }
+      ParametersAction parameters = getAction ( ParametersAction.class );
+      for ( DistributedTask t : getProject ().getItems () ) {
+        List<Action> actions = new ArrayList<Action> ();
+        actions.add ( coordinator );
+        if ( parameters != null ) {
+          actions.add ( new ParametersAction ( parameters
+                  .getParameters () ) );
+        }
+        if ( revisionaction != null ) {
+          actions.add ( revisionaction );
+        }
+        ScheduleResult sc = queue.schedule2 ( t, 0, actions );
+        if ( sc.isRefused () ) {
+          cancel ( pending );
+          throw new IllegalStateException ( "Failed to queue task" );
+        }
+        pending.put ( t, sc );
+        if ( pending.size () >= getProject ().getExecutors () ) {
+          break;
+        }
+      }
+      pendingExecutors = pending.size ();
+    }
 
+    /**
+     * Waits for the executors to complete. They are attached as they start
+     * and tasks go to whichever are running, woken as each starts or
+     * completes, the timeout keeps the lease check going while they run.
+     *
+     * @return the worst executor result
+     */
+    private Result waitForExecutors ( BuildListener listener,
+                                      Map<DistributedTask, ScheduleResult> pending )
+            throws InterruptedException, IOException {
+      Result rt = SUCCESS;
+      List<DistributedRun> localruns = new ArrayList<DistributedRun> ();
+      int minimum = Math.min ( getProject ().getMinExecutors (), pending
+                               .size () );
+      long timeout = TimeUnit.MINUTES.toMillis ( getProject ()
+              .getStartTimeout () );
+      long deadline = System.currentTimeMillis () + timeout;
+      try {
+        while ( !pending.isEmpty () || !localruns.isEmpty () ) {
+          coordinator.awaitExecutors ();
+          coordinator.checkLeases ();
+          for ( Iterator<Map.Entry<DistributedTask, ScheduleResult>> p
+                        = pending.entrySet ().iterator (); p.hasNext (); ) {
+            Map.Entry<DistributedTask, ScheduleResult> next = p.next ();
+            DistributedRun run = next.getKey ().getBuildByNumber (
+                    getNumber () );
+            if ( run == null && next.getValue ().getItem ().getFuture ()
+                    .isCancelled () ) {
+              p.remove ();
+              listener.getLogger ().println ( next.getKey ()
+                      .getDisplayName () + " was cancelled before it started" );
+            } else if ( run != null ) {
+              p.remove ();
+              runs.add ( run );
+              localruns.add ( run );
+              listener.getLogger ().println ( run.getProject ()
+                      .getDisplayName () + " started on " + run
+                      .getBuiltOnStr () );
+            }
+          }
+          if ( !pending.isEmpty () && coordinator.isDone () ) {
+            listener.getLogger ().println (
+                    "All tasks complete, cancelling " + pending.size ()
+                    + " executors that have not started" );
+            cancel ( pending );
+          } else if ( !pending.isEmpty () && timeout > 0
+                              && runs.size () >= minimum
+                              && System.currentTimeMillis () > deadline ) {
+            listener.getLogger ().println (
+                    "Cancelling " + pending.size ()
+                    + " executors not started within " + getProject ()
+                    .getStartTimeout () + " minutes" );
+            cancel ( pending );
+          }
+          pendingExecutors = pending.size ();
+          for ( Iterator<DistributedRun> r = localruns.iterator (); r
+                .hasNext (); ) {
+            DistributedRun lastBuild = r.next ();
+            if ( !lastBuild.isBuilding () ) {
+              r.remove ();
+              if ( lastBuild.getResult () != SUCCESS ) {
+                rt = lastBuild.getResult ();
+              }
+              listener.hyperlink ( "/" + lastBuild.getUrl (), lastBuild
+                                   .getProject ().getDisplayName () );
+              listener.getLogger ().print ( " " );
+              listener.getLogger ().println ( lastBuild.getResult () );
+            }
+          }
+        }
+      } finally {
+        cancel ( pending );
+        pendingExecutors = 0;
+      }
       return rt;
     }
 
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +71,20 @@ public class DistributedProject extends AbstractProject<DistributedProject, Dist
   private Label subJobsAssignedLabel;
   private String tasklistfile;
   private Integer executors = 1;
+  private Integer batchTarget = 0;
+  private boolean speculative;
+  private Integer taskRetries = 0;
+  private boolean nodeAffinity;
+  private Integer minExecutors = 1;
+  private Integer startTimeout = 0;
+  private boolean earlyExecutors;
+  private boolean workspaceSnapshot;
+  private boolean snapshotMasterOutputs;
+  private Integer snapshotCacheSize = 0;
+  private Integer syncConcurrency = 0;
+  private Integer syncBandwidth = 0;
+  private String testReports;
+  private transient TaskHistory taskHistory;
 
   public DistributedProject ( String name ) {
     this ( Jenkins.getInstance (), name );
@@ -87,6 +102,60 @@ public class DistributedProject extends AbstractProject<DistributedProject, Dist
     tasklistfile = file;
   }
 
+  /**
+   * @return the page replaying completed builds with other executor counts,
+   *         served at simulate/
+   */
+  public ScheduleSimulation getSimulate () {
+    return new ScheduleSimulation ( this );
+  }
+
+  /**
+   * @return the index of earlier task runs, built from the existing builds
+   *         the first time it is needed
+   */
+  public TaskHistory getTaskHistory () {
+    TaskHistory h;
+    synchronized ( this ) {
+      if ( taskHistory == null ) {
+        taskHistory = new TaskHistory ( new File ( getRootDir (),
+                                                   TaskHistory.FILE ) );
+      }
+      h = taskHistory;
+    }
+    synchronized ( h ) {
+      if ( !h.isLoaded () && !h.load () ) {
+        rebuildTaskHistory ( h );
+      }
+    }
+    return h;
+  }
+
+  private void rebuildTaskHistory ( TaskHistory h ) {
+    LOG.log ( Level.INFO, "Rebuilding task history of {0}", getFullName () );
+    List<TaskHistory.Build> all = new ArrayList<TaskHistory.Build> ();
+    for ( DistributedBuild b : getBuilds () ) {
+      if ( !b.isBuilding () ) {
+        all.add ( TaskHistory.of ( b ) );
+      }
+    }
+    Collections.reverse ( all );
+    try {
+      h.rebuild ( all );
+    } catch ( IOException ex ) {
+      LOG.log ( Level.WARNING, "Failed to save task history of "
+                               + getFullName (), ex );
+    }
+  }
+
+  @Override
+  public void renameTo ( String newName ) throws IOException {
+    super.renameTo ( newName );
+    synchronized ( this ) {
+      taskHistory = null;
+    }
+  }
+
   @Override
   public Item asItem () {
     return this;
@@ -306,6 +375,35 @@ public class DistributedProject extends AbstractProject<DistributedProject, Dist
       executors = 1;
     }
     tasklistfile = req.getParameter ( "tasklistfile" );
+    String batch = Util.fixEmptyAndTrim ( req.getParameter ( "batchTarget" ) );
+    batchTarget = batch != null ? Math.max ( 0, Integer.parseInt ( batch ) ) : 0;
+    speculative = req.getParameter ( "speculative" ) != null;
+    String retries = Util.fixEmptyAndTrim ( req.getParameter ( "taskRetries" ) );
+    taskRetries = retries != null ? Math.max ( 0, Integer.parseInt ( retries ) )
+                  : 0;
+    nodeAffinity = req.getParameter ( "nodeAffinity" ) != null;
+    earlyExecutors = req.getParameter ( "earlyExecutors" ) != null;
+    workspaceSnapshot = req.getParameter ( "workspaceSnapshot" ) != null;
+    snapshotMasterOutputs = workspaceSnapshot && req.getParameter (
+            "snapshotMasterOutputs" ) != null;
+    String cache = Util.fixEmptyAndTrim ( req.getParameter (
+            "snapshotCacheSize" ) );
+    snapshotCacheSize = cache != null ? Math.max ( 0, Integer.parseInt (
+            cache ) ) : 0;
+    String concurrency = Util.fixEmptyAndTrim ( req.getParameter (
+            "syncConcurrency" ) );
+    syncConcurrency = concurrency != null ? Math.max ( 0, Integer.parseInt (
+            concurrency ) ) : 0;
+    String bandwidth = Util.fixEmptyAndTrim ( req.getParameter (
+            "syncBandwidth" ) );
+    syncBandwidth = bandwidth != null ? Math.max ( 0, Integer.parseInt (
+            bandwidth ) ) : 0;
+    testReports = Util.fixEmptyAndTrim ( req.getParameter ( "testReports" ) );
+    String min = Util.fixEmptyAndTrim ( req.getParameter ( "minExecutors" ) );
+    minExecutors = min != null ? Math.max ( 1, Integer.parseInt ( min ) ) : 1;
+    String timeout = Util.fixEmptyAndTrim ( req.getParameter ( "startTimeout" ) );
+    startTimeout = timeout != null ? Math.max ( 0, Integer.parseInt ( timeout ) )
+                   : 0;
 
     buildWrappers.rebuild ( req, json, BuildWrappers.getFor ( this ) );
     setupbuilders.rebuildHetero ( req, json, Builder.all (), "setup" );
@@ -362,6 +460,109 @@ public class DistributedProject extends AbstractProject<DistributedProject, Dist
     return executors;
   }
 
+  /**
+   * @return true if executors should be queued as the build starts so their
+   *         checkout and setup overlap the master only steps
+   */
+  public boolean isEarlyExecutors () {
+    return earlyExecutors;
+  }
+
+  /**
+   * @return true if executors should unpack a snapshot of the parent's
+   *         workspace instead of checking out from the SCM
+   */
+  public boolean isWorkspaceSnapshot () {
+    return workspaceSnapshot;
+  }
+
+  /**
+   * @return true if the snapshot is taken after the master only steps so it
+   *         includes their outputs
+   */
+  public boolean isSnapshotMasterOutputs () {
+    return snapshotMasterOutputs;
+  }
+
+  /**
+   * @return size in MB of the snapshot cache kept on each agent, 0 to send
+   *         the whole snapshot every time
+   */
+  public Integer getSnapshotCacheSize () {
+    return snapshotCacheSize != null ? snapshotCacheSize : 0;
+  }
+
+  /**
+   * @return how many executors may sync files to the master at once, 0 for
+   *         no limit
+   */
+  public Integer getSyncConcurrency () {
+    return syncConcurrency != null ? syncConcurrency : 0;
+  }
+
+  /**
+   * @return bandwidth in MB per second shared by executors syncing files to
+   *         the master, 0 for no limit
+   */
+  public Integer getSyncBandwidth () {
+    return syncBandwidth != null ? syncBandwidth : 0;
+  }
+
+  /**
+   * @return pattern of the JUnit XML reports to count as executors sync them,
+   *         null to not count them
+   */
+  public String getTestReports () {
+    return testReports;
+  }
+
+  /**
+   * @return how many executors must have started before ones that are still
+   *         queued after the start timeout are cancelled
+   */
+  public Integer getMinExecutors () {
+    return minExecutors != null ? minExecutors : 1;
+  }
+
+  /**
+   * @return minutes an executor may wait in the queue before it is cancelled,
+   *         0 to wait for every executor
+   */
+  public Integer getStartTimeout () {
+    return startTimeout != null ? startTimeout : 0;
+  }
+
+  /**
+   * @return target length in seconds of a batch of tasks handed to an
+   *         executor in one go, 0 to run every task on its own
+   */
+  public Integer getBatchTarget () {
+    return batchTarget != null ? batchTarget : 0;
+  }
+
+  /**
+   * @return true if idle executors should start a second copy of tasks that
+   *         have far overrun their predicted duration once the queue is empty
+   */
+  public boolean isSpeculative () {
+    return speculative;
+  }
+
+  /**
+   * @return how many times a task is requeued when the executor running it
+   *         stops before completing it
+   */
+  public Integer getTaskRetries () {
+    return taskRetries != null ? taskRetries : 0;
+  }
+
+  /**
+   * @return true if executors should prefer tasks that last ran on their node
+   */
+  public boolean isNodeAffinity () {
+    return nodeAffinity;
+  }
+
   @Override
   public ContextMenu doChildrenContextMenu ( StaplerRequest request,
                                              StaplerResponse response ) throws
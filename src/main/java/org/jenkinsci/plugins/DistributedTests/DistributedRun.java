@@ -5,10 +5,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import hudson.Extension;
+import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.Build;
@@ -18,12 +21,15 @@ import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.ParametersAction;
 import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.scm.SubversionSCM;
 import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStep;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.Builder;
 import javax.annotation.Nonnull;
+import jenkins.model.CauseOfInterruption;
 import static hudson.model.Result.FAILURE;
 import static org.jenkinsci.plugins.DistributedTests.BuildStage.*;
 
@@ -34,8 +40,29 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
         implements Action {
 
   protected TaskCoordinator.Task currentTask;
+  protected transient List<TaskCoordinator.Task> currentTasks;
+  private transient boolean inTask;
+  private transient boolean abandoned;
   private BuildStage stage;
+  /**
+   * When each stage was entered, by ordinal.
+   */
+  private long[] stageTimes;
+  private long busyTime;
+  private transient long taskStarted;
   protected transient DistributedBuild parentBuild;
+  private transient Map<DistributedSync, SyncStream> syncStreams;
+  private transient SyncReceiver syncReceiver;
+  /**
+   * File the build steps of a batch report each task's result in.
+   */
+  private transient FilePath taskResults;
+  /**
+   * Range in the log of the tasks being run, picked up by the coordinator as
+   * they complete.
+   */
+  transient volatile long taskLogStart;
+  transient volatile long taskLogEnd;
 
   public DistributedRun ( DistributedTask job ) throws IOException {
     super ( job );
@@ -61,16 +88,100 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
     return stage;
   }
 
+  private synchronized void setStage ( BuildStage stage ) {
+    if ( stageTimes == null ) {
+      stageTimes = new long[BuildStage.values ().length];
+    }
+    stageTimes[stage.ordinal ()] = System.currentTimeMillis ();
+    this.stage = stage;
+  }
+
+  /**
+   * @return when the executor entered the stage, 0 if it did not or the
+   *         build predates recording it
+   */
+  public synchronized long getStageTime ( BuildStage stage ) {
+    return stageTimes != null ? stageTimes[stage.ordinal ()] : 0;
+  }
+
+  /**
+   * @return time spent running tasks, including copies abandoned to another
+   *         executor
+   */
+  public synchronized long getBusyTime () {
+    return busyTime;
+  }
+
   public TaskCoordinator.Task getCurrentTask () {
     return currentTask;
   }
 
+  public List<TaskCoordinator.Task> getCurrentTasks () {
+    return currentTasks;
+  }
+
+  /**
+   * @return offset in the log where the task's output starts if this
+   *         executor is running it now, otherwise -1
+   */
+  public synchronized long getTaskLogStart ( TaskCoordinator.Task task ) {
+    List<TaskCoordinator.Task> tasks = currentTasks;
+    return inTask && tasks != null && tasks.contains ( task ) ? taskLogStart
+           : -1;
+  }
+
+  /**
+   * @return where sync steps send files, the parent's receiver or one of
+   *         this executor's own if the parent is no longer running
+   */
+  public synchronized SyncReceiver getSyncReceiver () {
+    TaskCoordinator coord = getAction ( TaskCoordinator.class );
+    SyncReceiver rt = coord != null ? coord.getReceiver () : null;
+    if ( rt == null ) {
+      if ( syncReceiver == null ) {
+        syncReceiver = new SyncReceiver ( getRootBuild ().getWorkspace (), 0,
+                                          0 );
+      }
+      rt = syncReceiver;
+    }
+    return rt;
+  }
+
+  /**
+   * @return the background copy for an incremental sync step, started on
+   *         first use
+   */
+  public synchronized SyncStream getSyncStream ( DistributedSync sync ) {
+    if ( syncStreams == null ) {
+      syncStreams = new HashMap<DistributedSync, SyncStream> ();
+    }
+    SyncStream rt = syncStreams.get ( sync );
+    if ( rt == null ) {
+      rt = new SyncStream ( sync.getFilePattern (), getWorkspace (),
+                            getSyncReceiver (), getProject ()
+                            .getDisplayName () );
+      syncStreams.put ( sync, rt );
+    }
+    return rt;
+  }
+
   @Override
   public Map<String, String> getBuildVariables () {
     Map<String, String> buildVariables = super.getBuildVariables ();
     if ( currentTask != null ) {
       buildVariables.put ( "TASK", currentTask.getName () );
     }
+    if ( currentTasks != null && !currentTasks.isEmpty () ) {
+      StringBuilder names = new StringBuilder ();
+      for ( TaskCoordinator.Task t : currentTasks ) {
+        names.append ( names.length () > 0 ? "\n" : "" )
+                .append ( t.getName () );
+      }
+      buildVariables.put ( "TASKS", names.toString () );
+    }
+    if ( taskResults != null ) {
+      buildVariables.put ( TaskResults.VARIABLE, taskResults.getRemote () );
+    }
     return buildVariables;
   }
 
@@ -94,10 +205,98 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
     return parentBuild;
   }
 
+  /**
+   * Interrupts the build steps if they are still running the given task
+   * because another executor completed it first.
+   */
+  synchronized void abandon ( TaskCoordinator.Task task ) {
+    if ( inTask && currentTasks != null && currentTasks.contains ( task ) ) {
+      abandoned = true;
+      Executor executor = getExecutor ();
+      if ( executor != null ) {
+        executor.interrupt ( Result.ABORTED, new Abandoned ( task.getName () ) );
+      }
+    }
+  }
+
+  private synchronized void enterTask () {
+    inTask = true;
+    taskStarted = System.currentTimeMillis ();
+  }
+
+  /**
+   * @return true if the task was abandoned and nothing else interrupted the
+   *         build, the pending interrupt is then cleared. An abort from a
+   *         user or anything else is left pending.
+   */
+  private synchronized boolean leaveTask () {
+    inTask = false;
+    busyTime += System.currentTimeMillis () - taskStarted;
+    if ( !abandoned ) {
+      return false;
+    }
+    abandoned = false;
+    Executor executor = getExecutor ();
+    if ( executor != null ) {
+      for ( CauseOfInterruption c : executor.getCausesOfInterruption () ) {
+        if ( !( c instanceof Abandoned ) ) {
+          return false;
+        }
+      }
+    }
+    Thread.interrupted ();
+    return true;
+  }
+
+  /**
+   * @return an empty file next to the workspace for the build steps of a
+   *         batch to report each task's result in, null for a single task
+   */
+  private FilePath prepareTaskResults () throws IOException,
+                                                InterruptedException {
+    if ( currentTasks.size () < 2 ) {
+      return null;
+    }
+    FilePath ws = getWorkspace ();
+    FilePath dir = ws.getParent ().child ( ws.getName () + "@tmp" );
+    dir.mkdirs ();
+    FilePath rt = dir.child ( "task-results.txt" );
+    rt.delete ();
+    return rt;
+  }
+
+  private TaskResults readTaskResults ( BuildListener listener ) throws
+          IOException, InterruptedException {
+    if ( taskResults == null || !taskResults.exists () ) {
+      return TaskResults.parse ( null, null );
+    }
+    return TaskResults.parse ( taskResults.readToString (), listener
+                               .getLogger () );
+  }
+
   protected class DistributedExecutor extends BuildExecution {
 
     @Override
     public void defaultCheckout () throws IOException, InterruptedException {
+      setStage ( Checkout );
+      TaskCoordinator coord = getAction ( TaskCoordinator.class );
+      WorkspaceSnapshot snapshot = coord != null ? coord.getSnapshot () : null;
+      if ( snapshot != null ) {
+        long limit = project.getParent ().getSnapshotCacheSize () * 1024L
+                     * 1024L;
+        Node node = getBuiltOn ();
+        FilePath root = node != null ? node.getRootPath () : null;
+        boolean restored;
+        if ( limit > 0 && root != null ) {
+          restored = snapshot.restore ( getWorkspace (), root.child (
+                                        SnapshotCache.DIR ), limit, listener );
+        } else {
+          restored = snapshot.restore ( getWorkspace (), listener );
+        }
+        if ( restored ) {
+          return;
+        }
+      }
       hudson.scm.RevisionParameterAction svnrevs
               = getAction ( hudson.scm.RevisionParameterAction.class );
       if ( svnrevs != null ) {
@@ -107,13 +306,12 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
                   i.revision ) );
         }
       }
-      stage = Checkout;
       super.defaultCheckout ();
     }
 
     @Override
     protected Result doRun ( @Nonnull BuildListener listener ) throws Exception {
-      stage = Setup;
+      setStage ( Setup );
       if ( !preBuild ( listener, project.getBuilders () ) ) {
         return FAILURE;
       }
@@ -152,17 +350,54 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
         parentBuild = coord.getBuild ();
 
         if ( build ( listener, project.getParent ().getSetupBuilders () ) ) {
-          stage = Running;
-          currentTask = coord.getNextTask ( _this () );
-          while ( currentTask != null ) {
-            boolean success = build ( listener, builders );
-            if ( !success ) {
+          setStage ( Running );
+          currentTasks = coord.getNextTasks ( _this () );
+          while ( !currentTasks.isEmpty () ) {
+            currentTask = currentTasks.get ( 0 );
+            boolean success;
+            listener.getLogger ().flush ();
+            taskLogStart = getLogFile ().length ();
+            taskLogEnd = 0;
+            taskResults = prepareTaskResults ();
+            enterTask ();
+            try {
+              success = build ( listener, builders );
+            } catch ( InterruptedException e ) {
+              if ( !leaveTask () ) {
+                throw e;
+              }
+              taskResults = null;
+              listener.getLogger ().println ( "Abandoned " + currentTask
+                      .getName () + " as another executor completed it" );
+              currentTasks = coord.getNextTasks ( _this () );
+              continue;
+            }
+            leaveTask ();
+            listener.getLogger ().flush ();
+            taskLogEnd = getLogFile ().length ();
+            TaskResults reported = readTaskResults ( listener );
+            taskResults = null;
+            Result status = success ? Result.SUCCESS : Result.FAILURE;
+            Result worst = status;
+            for ( TaskCoordinator.Task t : currentTasks ) {
+              TaskResults.Entry e = reported.get ( t.getName () );
+              if ( e != null ) {
+                worst = worst.combine ( e.getResult () );
+              }
+            }
+            if ( coord.complete ( _this (), currentTasks, status, reported )
+                         && worst.isWorseOrEqualTo ( FAILURE ) ) {
               r = FAILURE;
             }
-            currentTask.complete ( success ? Result.SUCCESS : Result.FAILURE );
-            currentTask = coord.getNextTask ( _this () );
+            for ( Builder b : copiers ) {
+              if ( ( (DistributedSync) b ).isIncremental () ) {
+                getSyncStream ( (DistributedSync) b ).request ( listener );
+              }
+            }
+            currentTasks = coord.getNextTasks ( _this () );
           }
-          stage = SyncingFiles;
+          currentTask = null;
+          setStage ( SyncingFiles );
           if ( !build ( listener, copiers ) ) {
             r = FAILURE;
           }
@@ -175,6 +410,13 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
         if ( r != null ) {
           setResult ( r );
         }
+        synchronized ( DistributedRun.this ) {
+          if ( syncStreams != null ) {
+            for ( SyncStream stream : syncStreams.values () ) {
+              stream.close ();
+            }
+          }
+        }
         // tear down in reverse order
         boolean failed = false;
         for ( int i = buildEnvironments.size () - 1; i >= 0; i-- ) {
@@ -189,7 +431,7 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
         }
       }
 
-      stage = Post;
+      setStage ( Post );
       return r;
     }
 
@@ -220,7 +462,11 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
 
     @Override
     public void cleanUp ( BuildListener listener ) throws Exception {
-      stage = Complete;
+      setStage ( Complete );
+      TaskCoordinator coord = getAction ( TaskCoordinator.class );
+      if ( coord != null ) {
+        coord.release ( DistributedRun.this );
+      }
       super.cleanUp ( listener );
     }
 
@@ -228,4 +474,50 @@ public class DistributedRun extends Build<DistributedTask, DistributedRun>
   private static final Logger LOGGER
           = Logger.getLogger ( DistributedRun.class.getName () );
 
+  /**
+   * Lets the parent build know as soon as an executor starts or completes.
+   */
+  @Extension
+  public static class ExecutorListener extends RunListener<DistributedRun> {
+
+    public ExecutorListener () {
+      super ( DistributedRun.class );
+    }
+
+    @Override
+    public void onStarted ( DistributedRun r, TaskListener listener ) {
+      TaskCoordinator coord = r.getAction ( TaskCoordinator.class );
+      if ( coord != null ) {
+        coord.executorChanged ( r );
+      }
+    }
+
+    @Override
+    public void onCompleted ( DistributedRun r, TaskListener listener ) {
+      TaskCoordinator coord = r.getAction ( TaskCoordinator.class );
+      if ( coord != null ) {
+        coord.executorChanged ( r );
+      }
+    }
+  }
+
+  /**
+   * Why the build steps were interrupted when another executor completed
+   * their task first, tells it apart from an abort.
+   */
+  public static class Abandoned extends CauseOfInterruption {
+
+    private static final long serialVersionUID = 1L;
+    private final String task;
+
+    public Abandoned ( String task ) {
+      this.task = task;
+    }
+
+    @Override
+    public String getShortDescription () {
+      return "Another executor completed " + task;
+    }
+  }
+
 }
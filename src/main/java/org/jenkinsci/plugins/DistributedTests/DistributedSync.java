@@ -10,6 +10,7 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.DirScanner;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -29,6 +30,7 @@ public class DistributedSync extends Builder {
   public static final String BUILDER_DISPLAYNAME
           = "Syncronize Files To Master";
   private String filePattern;
+  private boolean incremental;
 
   @DataBoundConstructor
   public DistributedSync () {
@@ -43,6 +45,20 @@ public class DistributedSync extends Builder {
   public boolean perform ( AbstractBuild<?, ?> build, Launcher launcher,
                            BuildListener listener ) throws InterruptedException,
                                                            IOException {
+    if ( build instanceof DistributedRun ) {
+      DistributedRun run = (DistributedRun) build;
+      if ( incremental ) {
+        return run.getSyncStream ( this ).finish ( listener );
+      }
+      String owner = run.getProject ().getDisplayName ();
+      SyncReceiver receiver = run.getSyncReceiver ();
+      int count = receiver.receive ( owner, build.getWorkspace (),
+                                     new DirScanner.Glob ( filePattern, null ),
+                                     listener );
+      listener.getLogger ().println ( "Copied " + count + " files" );
+      listener.getLogger ().println ( "Synced " + receiver.describe ( owner ) );
+      return true;
+    }
     FilePath dest = build.getRootBuild ().getWorkspace ();
     FilePath local = build.getWorkspace ();
     int count = local.copyRecursiveTo ( filePattern, dest );
@@ -59,6 +75,18 @@ public class DistributedSync extends Builder {
     return this.filePattern;
   }
 
+  @DataBoundSetter
+  public void setIncremental ( boolean incremental ) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * @return true to copy files in the background as each task completes
+   */
+  public boolean isIncremental () {
+    return incremental;
+  }
+
   public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
     @Override
@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates task durations from the durations recorded in earlier builds.
+ * <p>
+ * Each task gets an exponentially weighted moving average of its own samples.
+ * Tasks without history fall back to the mean of their name prefix cohort
+ * (everything before the last '.', '/', ':' or '#') and then to the mean over
+ * every sample seen. Samples must be added oldest first.
+ * <p>
+ * Samples tagged with a node also give that node a speed factor, the
+ * geometric mean of how long its samples took relative to the prediction
+ * for the same task. A factor of 2 means tasks take twice as long there.
+ * <p>
+ * Samples are added by one thread. Once {@link #getNodeFactors()} has been
+ * called after the last sample the predictor is only read and can be shared.
+ *
+ * @author David van Laatum
+ */
+public class DurationPredictor {
+
+  /**
+   * Number of earlier builds to sample durations from.
+   */
+  public static final int HISTORY = 5;
+  private static final double ALPHA = 0.5;
+  private static final String SEPARATORS = "./:#";
+
+  private final Map<String, Estimate> tasks = new HashMap<String, Estimate> ();
+  private final Map<String, Estimate> cohorts
+          = new HashMap<String, Estimate> ();
+  private final Estimate overall = new Estimate ();
+  private final List<Sample> samples = new ArrayList<Sample> ();
+  private volatile Map<String, Double> factors;
+
+  public void addSample ( String name, long duration ) {
+    addSample ( name, null, duration );
+  }
+
+  public void addSample ( String name, String node, long duration ) {
+    if ( node != null ) {
+      samples.add ( new Sample ( name, node, duration ) );
+      factors = null;
+    }
+    Estimate e = tasks.get ( name );
+    if ( e == null ) {
+      e = new Estimate ();
+      tasks.put ( name, e );
+    }
+    e.add ( duration );
+
+    String cohort = cohortOf ( name );
+    if ( cohort != null ) {
+      Estimate c = cohorts.get ( cohort );
+      if ( c == null ) {
+        c = new Estimate ();
+        cohorts.put ( cohort, c );
+      }
+      c.addToMean ( duration );
+    }
+    overall.addToMean ( duration );
+  }
+
+  public boolean isKnown ( String name ) {
+    return tasks.containsKey ( name );
+  }
+
+  /**
+   * @return the predicted duration in milliseconds, 0 when nothing at all is
+   *         known
+   */
+  public long predict ( String name ) {
+    Estimate e = tasks.get ( name );
+    if ( e == null ) {
+      String cohort = cohortOf ( name );
+      e = cohort != null ? cohorts.get ( cohort ) : null;
+    }
+    if ( e == null ) {
+      e = overall;
+    }
+    return e.get ();
+  }
+
+  /**
+   * @return the predicted duration on the given node
+   */
+  public long predict ( String name, String node ) {
+    return Math.round ( predict ( name ) * getNodeFactor ( node ) );
+  }
+
+  /**
+   * @return how long tasks take on the node relative to the fleet, 1 when
+   *         the node has no samples
+   */
+  public double getNodeFactor ( String node ) {
+    Double f = node != null ? getNodeFactors ().get ( node ) : null;
+    return f != null ? f : 1;
+  }
+
+  /**
+   * @return the speed factor of every node with samples
+   */
+  public Map<String, Double> getNodeFactors () {
+    Map<String, Double> f = factors;
+    if ( f == null ) {
+      f = computeFactors ();
+      factors = f;
+    }
+    return f;
+  }
+
+  private Map<String, Double> computeFactors () {
+    Map<String, double[]> logs = new HashMap<String, double[]> ();
+    for ( Sample sample : samples ) {
+      long p = predict ( sample.name );
+      if ( p <= 0 || sample.duration <= 0 ) {
+        continue;
+      }
+      double[] l = logs.get ( sample.node );
+      if ( l == null ) {
+        l = new double[2];
+        logs.put ( sample.node, l );
+      }
+      l[0] += Math.log ( (double) sample.duration / p );
+      l[1]++;
+    }
+    Map<String, Double> rt = new HashMap<String, Double> ();
+    for ( Map.Entry<String, double[]> e : logs.entrySet () ) {
+      rt.put ( e.getKey (), Math.exp ( e.getValue ()[0] / e.getValue ()[1] ) );
+    }
+    return Collections.unmodifiableMap ( rt );
+  }
+
+  public int size () {
+    return tasks.size ();
+  }
+
+  static String cohortOf ( String name ) {
+    int idx = -1;
+    for ( int i = 0; i < SEPARATORS.length (); i++ ) {
+      idx = Math.max ( idx, name.lastIndexOf ( SEPARATORS.charAt ( i ) ) );
+    }
+    return idx > 0 ? name.substring ( 0, idx ) : null;
+  }
+
+  private static class Sample {
+
+    private final String name;
+    private final String node;
+    private final long duration;
+
+    Sample ( String name, String node, long duration ) {
+      this.name = name;
+      this.node = node;
+      this.duration = duration;
+    }
+  }
+
+  private static class Estimate {
+
+    private double value;
+    private long count;
+
+    void add ( long sample ) {
+      value = count == 0 ? sample : ALPHA * sample + ( 1 - ALPHA ) * value;
+      count++;
+    }
+
+    void addToMean ( long sample ) {
+      count++;
+      value += ( sample - value ) / count;
+    }
+
+    long get () {
+      return Math.round ( value );
+    }
+  }
+}
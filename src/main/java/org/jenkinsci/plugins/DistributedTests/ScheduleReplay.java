@@ -0,0 +1,462 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays the tasks of a completed build through the scheduler with other
+ * executor counts, node speeds and dispatch orders, to size a project's
+ * executors from what its builds actually ran.
+ * <p>
+ * Each task takes the time it took in the build, scaled by the speed factor
+ * of the executor it lands on. Dispatch orders rank tasks by the predictions
+ * the build had, as the coordinator would have. Tasks that did not run in
+ * the build are left out and count as complete for the ones waiting on them.
+ *
+ * @author David van Laatum
+ */
+public class ScheduleReplay {
+
+  /**
+   * Orders the waiting tasks are handed out in.
+   */
+  public enum Policy {
+
+    CriticalPath ( "Longest critical path first" ),
+    LongestFirst ( "Longest predicted first" ),
+    ShortestFirst ( "Shortest predicted first" ),
+    Name ( "By name" );
+
+    private final String description;
+
+    private Policy ( String description ) {
+      this.description = description;
+    }
+
+    public String getDescription () {
+      return description;
+    }
+  }
+
+  /**
+   * Most executor counts or speed factors one request may ask for.
+   */
+  static final int MAX_VALUES = 20;
+  private static final Comparator<Sample> BY_NAME = new Comparator<Sample> () {
+
+    @Override
+    public int compare ( Sample a, Sample b ) {
+      return a.name.compareTo ( b.name );
+    }
+  };
+  private static final Comparator<Sample> LONGEST = new Comparator<Sample> () {
+
+    @Override
+    public int compare ( Sample a, Sample b ) {
+      if ( a.predicted != b.predicted ) {
+        return a.predicted > b.predicted ? -1 : 1;
+      }
+      return BY_NAME.compare ( a, b );
+    }
+  };
+
+  private final List<Sample> samples;
+  private final int executors;
+  private final long makespan;
+  private DistributedBuild build;
+
+  /**
+   * @param executors number of executors the build ran on
+   * @param makespan  time from the first task starting to the last finishing
+   *                  in the build
+   */
+  ScheduleReplay ( List<Sample> samples, int executors, long makespan ) {
+    this.samples = samples;
+    this.executors = executors;
+    this.makespan = makespan;
+  }
+
+  /**
+   * @param number the build number, null or empty for the last completed
+   *               build
+   *
+   * @throws IllegalArgumentException if there is no such completed build or
+   *                                  it has no tasks
+   */
+  public static ScheduleReplay of ( DistributedProject project,
+                                    String number ) {
+    DistributedBuild build;
+    if ( number == null || number.trim ().isEmpty () ) {
+      build = project.getLastCompletedBuild ();
+      if ( build == null ) {
+        throw new IllegalArgumentException ( "No completed build of "
+                + project.getFullDisplayName () );
+      }
+    } else {
+      try {
+        build = project.getBuildByNumber ( Integer.parseInt ( number
+                .trim () ) );
+      } catch ( NumberFormatException ex ) {
+        build = null;
+      }
+      if ( build == null || build.isBuilding () ) {
+        throw new IllegalArgumentException ( "No completed build #"
+                + number.trim () );
+      }
+    }
+    ScheduleReplay rt = of ( build );
+    if ( rt == null || rt.getTasks () == 0 ) {
+      throw new IllegalArgumentException ( build.getFullDisplayName ()
+                                                   + " ran no tasks" );
+    }
+    return rt;
+  }
+
+  /**
+   * @return the tasks of the build that ran to a result, null if it has no
+   *         task list
+   */
+  public static ScheduleReplay of ( DistributedBuild build ) {
+    TaskCoordinator co = build.getCoordinator ();
+    if ( co == null ) {
+      return null;
+    }
+    List<Sample> samples = new ArrayList<Sample> ();
+    Set<Integer> executors = new HashSet<Integer> ();
+    long first = Long.MAX_VALUE;
+    long last = 0;
+    for ( TaskCoordinator.Task t : co.getTaskArray () ) {
+      if ( t.hasSample () ) {
+        long start = t.getStarted ().getTime ();
+        long finish = t.getFinished ().getTime ();
+        samples.add ( new Sample ( t.getName (), finish - start, t
+                                   .getPredictedDuration (), t
+                                   .getDependsOn () ) );
+        executors.add ( t.getExecutor () );
+        first = Math.min ( first, start );
+        last = Math.max ( last, finish );
+      }
+    }
+    ScheduleReplay rt = new ScheduleReplay ( samples, executors.size (),
+                                             last > first ? last - first : 0 );
+    rt.build = build;
+    return rt;
+  }
+
+  /**
+   * @return the build replayed, null if the tasks were given by hand
+   */
+  public DistributedBuild getBuild () {
+    return build;
+  }
+
+  public int getTasks () {
+    return samples.size ();
+  }
+
+  /**
+   * @return the number of executors the build ran tasks on
+   */
+  public int getExecutors () {
+    return executors;
+  }
+
+  /**
+   * @return time from the build's first task starting to its last finishing
+   */
+  public long getMakespan () {
+    return makespan;
+  }
+
+  public String getMakespanString () {
+    return TaskCoordinator.durationString ( makespan );
+  }
+
+  /**
+   * @param configured the project's executor count
+   *
+   * @return the largest executor count worth simulating, more executors than
+   *         tasks sit idle
+   */
+  public int getMaxExecutors ( int configured ) {
+    return Math.max ( 10 * Math.max ( configured, 1 ), samples.size () );
+  }
+
+  /**
+   * @return the total time the build's tasks took
+   */
+  public long getWork () {
+    long rt = 0;
+    for ( Sample s : samples ) {
+      rt += s.duration;
+    }
+    return rt;
+  }
+
+  /**
+   * Plays the tasks through the given executors.
+   *
+   * @param factors speed factor of each executor, repeated when there are
+   *                fewer factors than executors, empty for all at 1
+   */
+  public ScheduleSimulator.Result simulate ( int executors, double[] factors,
+                                             Policy policy ) {
+    ScheduleSimulator sim = new ScheduleSimulator ();
+    for ( int i = 0; i < executors; i++ ) {
+      sim.addExecutor ( 0, factors.length > 0 ? factors[i % factors.length]
+                           : 1 );
+    }
+    for ( Sample s : order ( policy ) ) {
+      sim.addTask ( s.name, s.duration, s.dependsOn );
+    }
+    return sim.run ( 0 );
+  }
+
+  /**
+   * Runs every combination of the executor counts and policies.
+   */
+  public List<Outcome> simulate ( int[] executors, double[] factors,
+                                  Policy[] policies ) {
+    List<Outcome> rt = new ArrayList<Outcome> ();
+    for ( int e : executors ) {
+      for ( Policy p : policies ) {
+        rt.add ( new Outcome ( e, p, simulate ( e, factors, p ) ) );
+      }
+    }
+    return rt;
+  }
+
+  List<Sample> order ( Policy policy ) {
+    List<Sample> rt = new ArrayList<Sample> ( samples );
+    switch ( policy ) {
+      case CriticalPath:
+        final Map<String, Long> paths = criticalPaths ();
+        Collections.sort ( rt, new Comparator<Sample> () {
+
+          @Override
+          public int compare ( Sample a, Sample b ) {
+            int c = paths.get ( b.name ).compareTo ( paths.get ( a.name ) );
+            return c != 0 ? c : LONGEST.compare ( a, b );
+          }
+        } );
+        break;
+      case LongestFirst:
+        Collections.sort ( rt, LONGEST );
+        break;
+      case ShortestFirst:
+        Collections.sort ( rt, Collections.reverseOrder ( LONGEST ) );
+        break;
+      default:
+        Collections.sort ( rt, BY_NAME );
+    }
+    return rt;
+  }
+
+  /**
+   * @return each task's predicted duration plus the longest chain of tasks
+   *         waiting on it, weighted the way the coordinator weighs them
+   */
+  private Map<String, Long> criticalPaths () {
+    Map<String, Sample> byName = new HashMap<String, Sample> ();
+    Map<String, List<Sample>> dependents = new HashMap<String, List<Sample>> ();
+    Map<String, Integer> waiting = new HashMap<String, Integer> ();
+    for ( Sample s : samples ) {
+      byName.put ( s.name, s );
+    }
+    List<Sample> sorted = new ArrayList<Sample> ( samples.size () );
+    for ( Sample s : samples ) {
+      int w = 0;
+      for ( String d : s.dependsOn ) {
+        if ( byName.containsKey ( d ) ) {
+          List<Sample> l = dependents.get ( d );
+          if ( l == null ) {
+            l = new ArrayList<Sample> ( 1 );
+            dependents.put ( d, l );
+          }
+          l.add ( s );
+          w++;
+        }
+      }
+      waiting.put ( s.name, w );
+      if ( w == 0 ) {
+        sorted.add ( s );
+      }
+    }
+    for ( int i = 0; i < sorted.size (); i++ ) {
+      List<Sample> l = dependents.get ( sorted.get ( i ).name );
+      for ( int j = 0; l != null && j < l.size (); j++ ) {
+        int w = waiting.get ( l.get ( j ).name ) - 1;
+        waiting.put ( l.get ( j ).name, w );
+        if ( w == 0 ) {
+          sorted.add ( l.get ( j ) );
+        }
+      }
+    }
+    Map<String, Long> rt = new HashMap<String, Long> ();
+    for ( Sample s : samples ) {
+      rt.put ( s.name, Math.max ( s.predicted, 1 ) );
+    }
+    for ( int i = sorted.size () - 1; i >= 0; i-- ) {
+      Sample s = sorted.get ( i );
+      long longest = 0;
+      List<Sample> l = dependents.get ( s.name );
+      for ( int j = 0; l != null && j < l.size (); j++ ) {
+        longest = Math.max ( longest, rt.get ( l.get ( j ).name ) );
+      }
+      rt.put ( s.name, Math.max ( s.predicted, 1 ) + longest );
+    }
+    return rt;
+  }
+
+  /**
+   * @return executor counts from a comma separated list
+   *
+   * @throws IllegalArgumentException if one is not a positive number, one is
+   *                                  over the maximum or there are too many
+   */
+  public static int[] parseExecutors ( String s, int max ) {
+    String[] parts = values ( s );
+    int[] rt = new int[parts.length];
+    for ( int i = 0; i < parts.length; i++ ) {
+      try {
+        rt[i] = Integer.parseInt ( parts[i].trim () );
+      } catch ( NumberFormatException ex ) {
+        rt[i] = 0;
+      }
+      if ( rt[i] <= 0 ) {
+        throw new IllegalArgumentException ( "Invalid executor count: "
+                                                     + parts[i].trim () );
+      }
+      if ( rt[i] > max ) {
+        throw new IllegalArgumentException ( "At most " + max
+                                                     + " executors can be simulated" );
+      }
+    }
+    return rt;
+  }
+
+  /**
+   * @return speed factors from a comma separated list, empty for none
+   *
+   * @throws IllegalArgumentException if one is not a positive number
+   */
+  public static double[] parseFactors ( String s ) {
+    if ( s == null || s.trim ().isEmpty () ) {
+      return new double[0];
+    }
+    String[] parts = values ( s );
+    double[] rt = new double[parts.length];
+    for ( int i = 0; i < parts.length; i++ ) {
+      try {
+        rt[i] = Double.parseDouble ( parts[i].trim () );
+      } catch ( NumberFormatException ex ) {
+        rt[i] = 0;
+      }
+      if ( !( rt[i] > 0 ) || Double.isInfinite ( rt[i] ) ) {
+        throw new IllegalArgumentException ( "Invalid speed factor: "
+                                                     + parts[i].trim () );
+      }
+    }
+    return rt;
+  }
+
+  private static String[] values ( String s ) {
+    String[] rt = s.split ( "," );
+    if ( rt.length > MAX_VALUES ) {
+      throw new IllegalArgumentException ( "At most " + MAX_VALUES
+                                                   + " values can be given" );
+    }
+    return rt;
+  }
+
+  /**
+   * @return the named policy, or every policy for null, empty or all
+   *
+   * @throws IllegalArgumentException if there is no such policy
+   */
+  public static Policy[] parsePolicy ( String s ) {
+    if ( s == null || s.trim ().isEmpty () || "all".equalsIgnoreCase ( s
+            .trim () ) ) {
+      return Policy.values ();
+    }
+    for ( Policy p : Policy.values () ) {
+      if ( p.name ().equalsIgnoreCase ( s.trim () ) ) {
+        return new Policy[]{ p };
+      }
+    }
+    throw new IllegalArgumentException ( "Unknown policy: " + s.trim () );
+  }
+
+  /**
+   * A task as it ran in the build.
+   */
+  static class Sample {
+
+    private final String name;
+    private final long duration;
+    private final long predicted;
+    private final List<String> dependsOn;
+
+    Sample ( String name, long duration, long predicted,
+             List<String> dependsOn ) {
+      this.name = name;
+      this.duration = duration;
+      this.predicted = predicted;
+      this.dependsOn = dependsOn;
+    }
+
+    String getName () {
+      return name;
+    }
+  }
+
+  /**
+   * The result of one executor count and policy.
+   */
+  public static class Outcome {
+
+    private final int executors;
+    private final Policy policy;
+    private final ScheduleSimulator.Result result;
+
+    Outcome ( int executors, Policy policy, ScheduleSimulator.Result result ) {
+      this.executors = executors;
+      this.policy = policy;
+      this.result = result;
+    }
+
+    public int getExecutors () {
+      return executors;
+    }
+
+    public Policy getPolicy () {
+      return policy;
+    }
+
+    public long getMakespan () {
+      return result.getMakespan ();
+    }
+
+    public String getMakespanString () {
+      return TaskCoordinator.durationString ( result.getMakespan () );
+    }
+
+    public int getUtilization () {
+      return result.getUtilization ();
+    }
+
+    public long getTailIdle () {
+      return result.getTailIdle ();
+    }
+
+    public String getTailIdleString () {
+      return TaskCoordinator.durationString ( result.getTailIdle () );
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.List;
+import hudson.model.Item;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Project page replaying a completed build with other executor counts, speed
+ * factors and dispatch orders, served at simulate/.
+ *
+ * @author David van Laatum
+ */
+public class ScheduleSimulation {
+
+  private final DistributedProject project;
+
+  public ScheduleSimulation ( DistributedProject project ) {
+    this.project = project;
+  }
+
+  public DistributedProject getProject () {
+    return project;
+  }
+
+  public ScheduleReplay.Policy[] getPolicies () {
+    return ScheduleReplay.Policy.values ();
+  }
+
+  /**
+   * Runs the simulation the form asked for. Simulations can be expensive so
+   * they take a POST from someone who may configure the project.
+   *
+   * @return null if the form was not submitted
+   */
+  public Report getReport ( StaplerRequest req ) {
+    String executors = req.getParameter ( "executors" );
+    if ( executors == null || !"POST".equals ( req.getMethod () ) ) {
+      return null;
+    }
+    project.checkPermission ( Item.CONFIGURE );
+    Report rt = new Report ();
+    try {
+      rt.replay = ScheduleReplay.of ( project, req.getParameter ( "build" ) );
+      int[] counts = ScheduleReplay.parseExecutors ( executors, rt.replay
+                                                     .getMaxExecutors ( project
+                                                             .getExecutors () ) );
+      double[] factors = ScheduleReplay.parseFactors ( req.getParameter (
+              "factors" ) );
+      ScheduleReplay.Policy[] policies = ScheduleReplay.parsePolicy ( req
+              .getParameter ( "policy" ) );
+      rt.outcomes = rt.replay.simulate ( counts, factors, policies );
+    } catch ( IllegalArgumentException ex ) {
+      rt.error = ex.getMessage ();
+    }
+    return rt;
+  }
+
+  public static class Report {
+
+    private ScheduleReplay replay;
+    private List<ScheduleReplay.Outcome> outcomes;
+    private String error;
+
+    public ScheduleReplay getReplay () {
+      return replay;
+    }
+
+    public List<ScheduleReplay.Outcome> getOutcomes () {
+      return outcomes;
+    }
+
+    /**
+     * @return why the simulation could not run, null if it ran
+     */
+    public String getError () {
+      return error;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Plays tasks through a set of executors the way the coordinator hands them
+ * out: whenever an executor is free it takes the first task in dispatch
+ * order whose prerequisites have finished, and runs it for its duration
+ * scaled by the executor's speed factor. The same input always gives the
+ * same schedule.
+ * <p>
+ * Tasks must be added in dispatch order. Prerequisites that are not part of
+ * the simulation are taken as already complete.
+ *
+ * @author David van Laatum
+ */
+public class ScheduleSimulator {
+
+  private static final Comparator<Job> BY_ORDER = new Comparator<Job> () {
+
+    @Override
+    public int compare ( Job a, Job b ) {
+      return a.index < b.index ? -1 : a.index > b.index ? 1 : 0;
+    }
+  };
+  private static final Comparator<Job> BY_FINISH = new Comparator<Job> () {
+
+    @Override
+    public int compare ( Job a, Job b ) {
+      if ( a.finish != b.finish ) {
+        return a.finish < b.finish ? -1 : 1;
+      }
+      return BY_ORDER.compare ( a, b );
+    }
+  };
+  private static final Comparator<Executor> BY_FREE
+          = new Comparator<Executor> () {
+
+            @Override
+            public int compare ( Executor a, Executor b ) {
+              if ( a.free != b.free ) {
+                return a.free < b.free ? -1 : 1;
+              }
+              return a.index < b.index ? -1 : a.index > b.index ? 1 : 0;
+            }
+          };
+
+  private final List<Executor> executors = new ArrayList<Executor> ();
+  private final Map<String, Job> jobs = new LinkedHashMap<String, Job> ();
+
+  /**
+   * @param free   when the executor can take its first task
+   * @param factor how long tasks take there relative to their duration
+   *
+   * @return the executor's index
+   */
+  public int addExecutor ( long free, double factor ) {
+    Executor e = new Executor ( executors.size (), free, factor );
+    executors.add ( e );
+    return e.index;
+  }
+
+  /**
+   * Adds a task already running on an executor, the executor is busy until
+   * it finishes and tasks waiting on it are held back until then.
+   */
+  public void addRunning ( String name, int executor, long finish ) {
+    Executor e = executors.get ( executor );
+    e.free = Math.max ( e.free, finish );
+    e.last = e.free;
+    Job j = new Job ( jobs.size (), 0, null );
+    j.executor = executor;
+    j.finish = finish;
+    jobs.put ( name, j );
+  }
+
+  /**
+   * Adds a task waiting to run.
+   *
+   * @param dependsOn names of the tasks it waits on, may be null
+   */
+  public void addTask ( String name, long duration,
+                        Collection<String> dependsOn ) {
+    jobs.put ( name, new Job ( jobs.size (), Math.max ( 0, duration ),
+                               dependsOn ) );
+  }
+
+  /**
+   * Runs the simulation, once per simulator.
+   *
+   * @param start the time the simulation starts from
+   */
+  public Result run ( long start ) {
+    PriorityQueue<Job> ready = new PriorityQueue<Job> ( 11, BY_ORDER );
+    PriorityQueue<Job> finishing = new PriorityQueue<Job> ( 11, BY_FINISH );
+    PriorityQueue<Executor> free = new PriorityQueue<Executor> ( 11, BY_FREE );
+    for ( Job j : jobs.values () ) {
+      if ( j.dependsOn != null ) {
+        for ( String name : j.dependsOn ) {
+          Job d = jobs.get ( name );
+          if ( d != null ) {
+            d.dependents.add ( j );
+            j.pending++;
+          }
+        }
+      }
+    }
+    for ( Job j : jobs.values () ) {
+      if ( j.executor >= 0 ) {
+        finishing.add ( j );
+      } else if ( j.pending == 0 ) {
+        ready.add ( j );
+      }
+    }
+    for ( Executor e : executors ) {
+      e.free = Math.max ( e.free, start );
+      e.last = Math.max ( e.last, e.free );
+      free.add ( e );
+    }
+    Result rt = new Result ( start, executors.size () );
+    while ( !free.isEmpty () ) {
+      Executor e = free.poll ();
+      while ( !finishing.isEmpty () && finishing.peek ().finish <= e.free ) {
+        release ( finishing.poll (), ready, rt );
+      }
+      if ( ready.isEmpty () ) {
+        if ( finishing.isEmpty () ) {
+          free.add ( e );
+          break;
+        }
+        // nothing to do until a prerequisite finishes
+        e.free = finishing.peek ().finish;
+        free.add ( e );
+        continue;
+      }
+      Job j = ready.poll ();
+      j.executor = e.index;
+      j.finish = e.free + Math.round ( j.duration * e.factor );
+      finishing.add ( j );
+      e.busy += j.finish - e.free;
+      e.free = j.finish;
+      e.last = j.finish;
+      e.tasks++;
+      free.add ( e );
+    }
+    while ( !finishing.isEmpty () ) {
+      release ( finishing.poll (), ready, rt );
+    }
+    for ( Job j : jobs.values () ) {
+      if ( j.executor < 0 ) {
+        rt.unscheduled++;
+      }
+    }
+    for ( Executor e : executors ) {
+      rt.busy += e.busy;
+      rt.tasks[e.index] = e.tasks;
+      rt.lastFinish[e.index] = e.last;
+      rt.executorBusy[e.index] = e.busy;
+    }
+    return rt;
+  }
+
+  private static void release ( Job j, PriorityQueue<Job> ready, Result rt ) {
+    rt.finish = Math.max ( rt.finish, j.finish );
+    for ( Job d : j.dependents ) {
+      if ( --d.pending == 0 ) {
+        ready.add ( d );
+      }
+    }
+  }
+
+  /**
+   * The outcome of a simulation.
+   */
+  public static class Result {
+
+    private final long start;
+    private long finish;
+    private long busy;
+    private int unscheduled;
+    private final int[] tasks;
+    private final long[] lastFinish;
+    private final long[] executorBusy;
+
+    Result ( long start, int executors ) {
+      this.start = start;
+      this.finish = start;
+      this.tasks = new int[executors];
+      this.lastFinish = new long[executors];
+      this.executorBusy = new long[executors];
+    }
+
+    /**
+     * @return when the last task finishes
+     */
+    public long getFinish () {
+      return finish;
+    }
+
+    public long getMakespan () {
+      return finish - start;
+    }
+
+    /**
+     * @return time the executors spent running the waiting tasks
+     */
+    public long getBusy () {
+      return busy;
+    }
+
+    /**
+     * @return busy time as a percentage of the executors' time until the
+     *         last task finishes
+     */
+    public int getUtilization () {
+      long span = getMakespan () * tasks.length;
+      return span > 0 ? (int) ( busy * 100 / span ) : 0;
+    }
+
+    /**
+     * @return time executors sat without work between their last task and
+     *         the last task of all finishing, added up
+     */
+    public long getTailIdle () {
+      long rt = 0;
+      for ( long l : lastFinish ) {
+        rt += Math.max ( 0, finish - l );
+      }
+      return rt;
+    }
+
+    public int getExecutors () {
+      return tasks.length;
+    }
+
+    /**
+     * @return tasks the executor ran
+     */
+    public int getTasks ( int executor ) {
+      return tasks[executor];
+    }
+
+    public long getBusy ( int executor ) {
+      return executorBusy[executor];
+    }
+
+    /**
+     * @return waiting tasks that never ran, there were no executors or their
+     *         prerequisites never finished
+     */
+    public int getUnscheduled () {
+      return unscheduled;
+    }
+  }
+
+  private static final class Executor {
+
+    private final int index;
+    private final double factor;
+    private long free;
+    private long last;
+    private long busy;
+    private int tasks;
+
+    Executor ( int index, long free, double factor ) {
+      this.index = index;
+      this.free = free;
+      this.last = free;
+      this.factor = factor;
+    }
+  }
+
+  private static final class Job {
+
+    private final int index;
+    private final long duration;
+    private final Collection<String> dependsOn;
+    private final List<Job> dependents = new ArrayList<Job> ( 1 );
+    private int pending;
+    private int executor = -1;
+    private long finish;
+
+    Job ( int index, long duration, Collection<String> dependsOn ) {
+      this.index = index;
+      this.duration = duration;
+      this.dependsOn = dependsOn;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Item;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Replays a completed build from the command line, the same simulation as
+ * the project's simulate page.
+ *
+ * @author David van Laatum
+ */
+@Extension
+public class SimulateScheduleCommand extends CLICommand {
+
+  @Argument ( metaVar = "JOB", usage = "Distributed project", required = true )
+  public String job;
+  @Option ( name = "-b", metaVar = "BUILD",
+            usage = "Build to replay, the last completed build by default" )
+  public String build;
+  @Option ( name = "-e", metaVar = "N,...",
+            usage = "Executor counts to compare, the project's by default" )
+  public String executors;
+  @Option ( name = "-f", metaVar = "FACTOR,...",
+            usage = "Executor speed factors, 2 means tasks take twice as long" )
+  public String factors;
+  @Option ( name = "-p", metaVar = "POLICY",
+            usage = "CriticalPath, LongestFirst, ShortestFirst, Name or all" )
+  public String policy;
+
+  @Override
+  public String getShortDescription () {
+    return "Replays a distributed build with other executor counts";
+  }
+
+  @Override
+  protected int run () throws Exception {
+    DistributedProject project = Jenkins.getInstance ().getItemByFullName (
+            job, DistributedProject.class );
+    if ( project == null ) {
+      throw new AbortException ( "No such distributed project " + job );
+    }
+    project.checkPermission ( Item.CONFIGURE );
+    ScheduleReplay replay;
+    int[] counts;
+    double[] f;
+    ScheduleReplay.Policy[] policies;
+    try {
+      replay = ScheduleReplay.of ( project, build );
+      counts = ScheduleReplay.parseExecutors ( executors != null ? executors
+                                               : String.valueOf ( project
+                                                       .getExecutors () ),
+                                               replay.getMaxExecutors ( project
+                                                       .getExecutors () ) );
+      f = ScheduleReplay.parseFactors ( factors );
+      policies = ScheduleReplay.parsePolicy ( policy );
+    } catch ( IllegalArgumentException ex ) {
+      throw new AbortException ( ex.getMessage () );
+    }
+    stdout.println ( replay.getBuild ().getFullDisplayName () + " ran "
+                     + replay.getTasks () + " tasks on "
+                     + replay.getExecutors () + " executors in "
+                     + replay.getMakespanString () );
+    stdout.println ( String.format ( "%9s  %-28s %12s %11s %12s",
+                                     "Executors", "Dispatch order",
+                                     "Makespan", "Utilization",
+                                     "Tail idle" ) );
+    for ( ScheduleReplay.Outcome o : replay.simulate ( counts, f, policies ) ) {
+      stdout.println ( String.format ( "%9d  %-28s %12s %10d%% %12s", o
+                                       .getExecutors (), o.getPolicy ()
+                                       .getDescription (), o
+                                       .getMakespanString (), o
+                                       .getUtilization (), o
+                                       .getTailIdleString () ) );
+    }
+    return 0;
+  }
+}
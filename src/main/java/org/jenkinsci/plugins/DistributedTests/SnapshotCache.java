@@ -0,0 +1,436 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+/**
+ * Content addressed store of workspace snapshot files kept on each agent, so
+ * an executor only receives the files its agent has not seen before.
+ * <p>
+ * Files are stored under their SHA-1 in the blobs directory and copied into
+ * the workspace, the least recently used are removed once the cache grows
+ * past its size limit. Everything that changes the cache on the agent holds
+ * a lock per cache directory, blobs are copied into workspaces outside it.
+ *
+ * @author David van Laatum
+ */
+public class SnapshotCache {
+
+  /**
+   * Directory under the agent's root holding the cache.
+   */
+  public static final String DIR = "distributedtests-cache";
+  private static final String BLOBS = "blobs";
+  private static final String INCOMING = "incoming";
+  private static final Map<String, Object> LOCKS
+          = new HashMap<String, Object> ();
+
+  private SnapshotCache () {
+  }
+
+  /**
+   * @return the files under the directory with their hashes, symbolic links
+   *         are skipped so nothing outside the directory is included
+   */
+  public static List<Entry> index ( File dir ) throws IOException {
+    List<Entry> rt = new ArrayList<Entry> ();
+    index ( dir, "", rt );
+    return rt;
+  }
+
+  private static void index ( File dir, String prefix, List<Entry> rt ) throws
+          IOException {
+    File[] files = dir.listFiles ();
+    if ( files == null ) {
+      throw new IOException ( "Failed to list " + dir );
+    }
+    Arrays.sort ( files );
+    for ( File f : files ) {
+      if ( isSymlink ( f ) ) {
+        continue;
+      }
+      if ( f.isDirectory () ) {
+        index ( f, prefix + f.getName () + "/", rt );
+      } else {
+        rt.add ( new Entry ( prefix + f.getName (), hash ( f ), f.length (), f
+                             .canExecute () ) );
+      }
+    }
+  }
+
+  /**
+   * Java 6 has no way to ask, so a link is recognised by its canonical path
+   * differing from the canonical path of its directory plus its name.
+   */
+  static boolean isSymlink ( File f ) throws IOException {
+    File parent = f.getParentFile ();
+    File c = parent != null ? new File ( parent.getCanonicalFile (), f
+            .getName () ) : f;
+    return !c.getCanonicalFile ().equals ( c.getAbsoluteFile () );
+  }
+
+  static String hash ( File f ) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance ( "SHA-1" );
+    } catch ( NoSuchAlgorithmException ex ) {
+      throw new IOException ( ex );
+    }
+    InputStream in = new FileInputStream ( f );
+    try {
+      byte[] buffer = new byte[8192];
+      int len;
+      while ( ( len = in.read ( buffer ) ) > 0 ) {
+        digest.update ( buffer, 0, len );
+      }
+    } finally {
+      in.close ();
+    }
+    StringBuilder sb = new StringBuilder ();
+    for ( byte b : digest.digest () ) {
+      sb.append ( String.format ( "%02x", b ) );
+    }
+    return sb.toString ();
+  }
+
+  private static Object lockFor ( File cache ) {
+    synchronized ( LOCKS ) {
+      String key = cache.getAbsolutePath ();
+      Object rt = LOCKS.get ( key );
+      if ( rt == null ) {
+        rt = new Object ();
+        LOCKS.put ( key, rt );
+      }
+      return rt;
+    }
+  }
+
+  /**
+   * Removes the least recently used blobs until the cache fits the limit.
+   *
+   * @return bytes removed
+   */
+  static long evict ( File blobs, long limit ) {
+    File[] files = blobs.listFiles ();
+    if ( files == null ) {
+      return 0;
+    }
+    long size = 0;
+    for ( File f : files ) {
+      size += f.length ();
+    }
+    if ( size <= limit ) {
+      return 0;
+    }
+    final Map<File, Long> used = new HashMap<File, Long> ();
+    for ( File f : files ) {
+      used.put ( f, f.lastModified () );
+    }
+    Arrays.sort ( files, new Comparator<File> () {
+
+      @Override
+      public int compare ( File o1, File o2 ) {
+        return used.get ( o1 ).compareTo ( used.get ( o2 ) );
+      }
+    } );
+    long removed = 0;
+    for ( int i = 0; i < files.length && size > limit; i++ ) {
+      long length = files[i].length ();
+      if ( files[i].delete () ) {
+        size -= length;
+        removed += length;
+      }
+    }
+    return removed;
+  }
+
+  static void copy ( File from, File to ) throws IOException {
+    InputStream in = new FileInputStream ( from );
+    try {
+      OutputStream out = new FileOutputStream ( to );
+      try {
+        byte[] buffer = new byte[8192];
+        int len;
+        while ( ( len = in.read ( buffer ) ) > 0 ) {
+          out.write ( buffer, 0, len );
+        }
+      } finally {
+        out.close ();
+      }
+    } finally {
+      in.close ();
+    }
+  }
+
+  private static void deleteContents ( File dir ) throws IOException {
+    File[] files = dir.listFiles ();
+    if ( files == null ) {
+      return;
+    }
+    for ( File f : files ) {
+      if ( f.isDirectory () && !isSymlink ( f ) ) {
+        deleteContents ( f );
+      }
+      if ( !f.delete () ) {
+        throw new IOException ( "Failed to delete " + f );
+      }
+    }
+  }
+
+  /**
+   * A file in a snapshot.
+   */
+  public static class Entry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String path;
+    private final String hash;
+    private final long size;
+    private final boolean executable;
+
+    public Entry ( String path, String hash, long size, boolean executable ) {
+      this.path = path;
+      this.hash = hash;
+      this.size = size;
+      this.executable = executable;
+    }
+
+    public String getPath () {
+      return path;
+    }
+
+    public String getHash () {
+      return hash;
+    }
+
+    public long getSize () {
+      return size;
+    }
+  }
+
+  /**
+   * Finds which of the hashes the agent's cache already holds, run against
+   * the cache directory. The blobs found are marked used so they are the
+   * last to be evicted before the workspace is filled.
+   */
+  public static class Probe implements FilePath.FileCallable<Set<String>> {
+
+    private static final long serialVersionUID = 1L;
+    private final Set<String> hashes;
+
+    public Probe ( Set<String> hashes ) {
+      this.hashes = hashes;
+    }
+
+    @Override
+    public Set<String> invoke ( File cache, VirtualChannel channel ) throws
+            IOException {
+      Set<String> rt = new HashSet<String> ();
+      synchronized ( lockFor ( cache ) ) {
+        File blobs = new File ( cache, BLOBS );
+        long now = System.currentTimeMillis ();
+        for ( String h : hashes ) {
+          File blob = new File ( blobs, h );
+          if ( blob.isFile () ) {
+            blob.setLastModified ( now );
+            rt.add ( h );
+          }
+        }
+      }
+      return rt;
+    }
+  }
+
+  /**
+   * Fills a workspace from the cache, run against the workspace. Blobs that
+   * were sent are first moved from their incoming directory into the cache.
+   * Another executor on the agent may have evicted blobs since the probe, or
+   * evict them while they are being copied, the missing hashes are then
+   * reported so they can be sent and the workspace filled again.
+   */
+  public static class Assemble implements FilePath.FileCallable<Filled> {
+
+    private static final long serialVersionUID = 1L;
+    private final String cache;
+    private final String incoming;
+    private final List<Entry> entries;
+    private final long limit;
+
+    /**
+     * @param incoming name of the directory under the cache's incoming
+     *                 directory holding the blobs that were sent, null if
+     *                 none were
+     */
+    public Assemble ( String cache, String incoming, List<Entry> entries,
+                      long limit ) {
+      this.cache = cache;
+      this.incoming = incoming;
+      this.entries = entries;
+      this.limit = limit;
+    }
+
+    @Override
+    public Filled invoke ( File workspace, VirtualChannel channel ) throws
+            IOException {
+      File dir = new File ( cache );
+      File blobs = new File ( dir, BLOBS );
+      Set<String> missing = new HashSet<String> ();
+      synchronized ( lockFor ( dir ) ) {
+        if ( !blobs.isDirectory () && !blobs.mkdirs () ) {
+          throw new IOException ( "Failed to create " + blobs );
+        }
+        if ( incoming != null ) {
+          File in = new File ( new File ( dir, INCOMING ), incoming );
+          File[] files = in.listFiles ();
+          for ( int i = 0; files != null && i < files.length; i++ ) {
+            File to = new File ( blobs, files[i].getName () );
+            if ( to.exists () ? !files[i].delete () : !files[i].renameTo (
+                         to ) ) {
+              throw new IOException ( "Failed to move " + files[i] + " to "
+                                              + to );
+            }
+          }
+          in.delete ();
+        }
+        long now = System.currentTimeMillis ();
+        for ( Entry e : entries ) {
+          File blob = new File ( blobs, e.hash );
+          if ( !blob.isFile () ) {
+            missing.add ( e.hash );
+          } else {
+            // marked used so they are the last to be evicted while copying
+            blob.setLastModified ( now );
+          }
+        }
+        if ( !missing.isEmpty () ) {
+          return new Filled ( 0, 0, 0, missing );
+        }
+      }
+      if ( !workspace.isDirectory () && !workspace.mkdirs () ) {
+        throw new IOException ( "Failed to create " + workspace );
+      }
+      deleteContents ( workspace );
+      long bytes = 0;
+      for ( Entry e : entries ) {
+        File blob = new File ( blobs, e.hash );
+        File to = new File ( workspace, e.path );
+        File parent = to.getParentFile ();
+        if ( !parent.isDirectory () && !parent.mkdirs () ) {
+          throw new IOException ( "Failed to create " + parent );
+        }
+        try {
+          copy ( blob, to );
+        } catch ( FileNotFoundException ex ) {
+          if ( blob.isFile () ) {
+            throw ex;
+          }
+          missing.add ( e.hash );
+          continue;
+        }
+        if ( e.executable ) {
+          to.setExecutable ( true );
+        }
+        bytes += e.size;
+      }
+      if ( !missing.isEmpty () ) {
+        return new Filled ( 0, 0, 0, missing );
+      }
+      synchronized ( lockFor ( dir ) ) {
+        return new Filled ( entries.size (), bytes, evict ( blobs, limit ),
+                            missing );
+      }
+    }
+  }
+
+  /**
+   * What filling a workspace from the cache did.
+   */
+  public static class Filled implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final long files;
+    private final long bytes;
+    private final long evicted;
+    private final Set<String> missing;
+
+    Filled ( long files, long bytes, long evicted, Set<String> missing ) {
+      this.files = files;
+      this.bytes = bytes;
+      this.evicted = evicted;
+      this.missing = missing;
+    }
+
+    /**
+     * @return files written to the workspace
+     */
+    public long getFiles () {
+      return files;
+    }
+
+    /**
+     * @return bytes written to the workspace
+     */
+    public long getBytes () {
+      return bytes;
+    }
+
+    /**
+     * @return bytes evicted from the cache
+     */
+    public long getEvicted () {
+      return evicted;
+    }
+
+    /**
+     * @return hashes the cache no longer held, the workspace is incomplete if
+     *         there are any
+     */
+    public Set<String> getMissing () {
+      return missing;
+    }
+  }
+
+  /**
+   * Scans the given files of a snapshot directory naming each by its hash,
+   * so the archive unpacks straight into a cache's blobs.
+   */
+  public static class Selected extends DirScanner {
+
+    private static final long serialVersionUID = 1L;
+    private final Map<String, String> paths;
+
+    /**
+     * @param paths relative path of one file for each hash to send
+     */
+    public Selected ( Map<String, String> paths ) {
+      this.paths = paths;
+    }
+
+    @Override
+    public void scan ( File dir, FileVisitor visitor ) throws IOException {
+      for ( Map.Entry<String, String> e : paths.entrySet () ) {
+        visitor.visit ( new File ( dir, e.getValue () ), e.getKey () );
+      }
+    }
+  }
+}
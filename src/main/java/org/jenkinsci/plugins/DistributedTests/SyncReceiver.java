@@ -0,0 +1,459 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.io.ArchiverFactory;
+
+/**
+ * Receives the files executors sync into the parent build's workspace.
+ * <p>
+ * Transfers are limited in number and share a bandwidth cap. Files are hashed
+ * on the agent first, a file the workspace already holds is skipped and one
+ * whose content is already there under another path is copied on the
+ * master's side instead of being sent. A path another executor already wrote
+ * with different content is a collision, the first copy is kept and the
+ * collision reported.
+ *
+ * @author David van Laatum
+ */
+public class SyncReceiver {
+
+  private final FilePath dest;
+  private final Semaphore slots;
+  private final Throttle throttle;
+  private final TestReport report;
+  private final Map<String, Received> paths = new HashMap<String, Received> ();
+  private final Map<String, String> hashes = new HashMap<String, String> ();
+  private final Map<String, Stats> stats = new LinkedHashMap<String, Stats> ();
+  private final List<String> collisions = new ArrayList<String> ();
+
+  /**
+   * @param concurrency    transfers allowed at once, 0 for no limit
+   * @param bytesPerSecond bandwidth shared by all transfers, 0 for no limit
+   */
+  public SyncReceiver ( FilePath dest, int concurrency, long bytesPerSecond ) {
+    this ( dest, concurrency, bytesPerSecond, null );
+  }
+
+  /**
+   * @param report test reports to parse as they arrive, null for none
+   */
+  public SyncReceiver ( FilePath dest, int concurrency, long bytesPerSecond,
+                        TestReport report ) {
+    this.dest = dest;
+    this.slots = concurrency > 0 ? new Semaphore ( concurrency, true ) : null;
+    this.throttle = bytesPerSecond > 0 ? new Throttle ( bytesPerSecond ) : null;
+    this.report = report;
+  }
+
+  /**
+   * Syncs the scanned files from an executor's workspace.
+   *
+   * @param owner name of the executor sending the files
+   * @return files written to the workspace
+   */
+  public int receive ( String owner, FilePath source, DirScanner scanner,
+                       TaskListener listener ) throws IOException,
+                                                      InterruptedException {
+    long start = System.currentTimeMillis ();
+    Plan plan;
+    if ( slots != null ) {
+      slots.acquire ();
+    }
+    try {
+      long waited = System.currentTimeMillis () - start;
+      List<SnapshotCache.Entry> index = source.act ( new Index ( scanner ) );
+      plan = plan ( owner, index );
+      for ( String c : plan.collisions ) {
+        listener.error ( "Not syncing " + c );
+      }
+      long bytes = 0;
+      boolean done = false;
+      try {
+        if ( !plan.send.isEmpty () ) {
+          bytes = transfer ( source, plan.send );
+        }
+        if ( !plan.copies.isEmpty () ) {
+          dest.act ( new Duplicate ( plan.copies ) );
+        }
+        done = true;
+      } finally {
+        complete ( owner, plan, done, bytes, waited, System
+                   .currentTimeMillis () - start - waited );
+      }
+    } finally {
+      if ( slots != null ) {
+        slots.release ();
+      }
+    }
+    if ( report != null ) {
+      List<String> written = new ArrayList<String> ( plan.send.keySet () );
+      written.addAll ( plan.copies.keySet () );
+      try {
+        report.ingest ( dest, written );
+      } catch ( IOException ex ) {
+        listener.error ( "Failed to read test reports: " + ex.getMessage () );
+      }
+    }
+    return plan.send.size () + plan.copies.size ();
+  }
+
+  /**
+   * Works out what to do with each file and claims the paths that will be
+   * written.
+   */
+  synchronized Plan plan ( String owner, List<SnapshotCache.Entry> index ) {
+    Plan rt = new Plan ();
+    for ( SnapshotCache.Entry e : index ) {
+      Received r = paths.get ( e.getPath () );
+      if ( r != null && r.hash.equals ( e.getHash () ) ) {
+        rt.unchanged++;
+      } else if ( r != null && !r.owner.equals ( owner ) ) {
+        String c = e.getPath () + " from " + owner + ", " + r.owner
+                   + " already wrote it with different content";
+        rt.collisions.add ( c );
+        collisions.add ( c );
+      } else {
+        String at = hashes.get ( e.getHash () );
+        if ( at != null && !at.equals ( e.getPath () ) ) {
+          rt.copies.put ( e.getPath (), at );
+        } else {
+          rt.send.put ( e.getPath (), e.getPath () );
+          rt.bytes += e.getSize ();
+        }
+        if ( r != null && e.getPath ().equals ( hashes.get ( r.hash ) ) ) {
+          hashes.remove ( r.hash );
+        }
+        rt.claimed.put ( e.getPath (), r );
+        paths.put ( e.getPath (), new Received ( e.getHash (), owner ) );
+      }
+    }
+    return rt;
+  }
+
+  /**
+   * Makes the written files available for copying, or gives back the claims
+   * of a failed transfer.
+   */
+  synchronized void complete ( String owner, Plan plan, boolean done,
+                               long bytes, long waited, long time ) {
+    for ( Map.Entry<String, Received> e : plan.claimed.entrySet () ) {
+      Received now = paths.get ( e.getKey () );
+      if ( done ) {
+        if ( now != null ) {
+          hashes.put ( now.hash, e.getKey () );
+        }
+      } else if ( e.getValue () != null ) {
+        paths.put ( e.getKey (), e.getValue () );
+      } else {
+        paths.remove ( e.getKey () );
+      }
+    }
+    Stats s = stats.get ( owner );
+    if ( s == null ) {
+      s = new Stats ();
+      stats.put ( owner, s );
+    }
+    if ( done ) {
+      s.files += plan.send.size ();
+      s.bytes += plan.bytes;
+      s.sent += bytes;
+      s.copied += plan.copies.size ();
+    }
+    s.unchanged += plan.unchanged;
+    s.collisions += plan.collisions.size ();
+    s.waited += waited;
+    s.time += time;
+  }
+
+  /**
+   * @return a summary of what an executor has synced, null if it has not
+   */
+  public synchronized String describe ( String owner ) {
+    Stats s = stats.get ( owner );
+    return s != null ? s.toString () : null;
+  }
+
+  /**
+   * Logs what each executor synced and the collisions between them.
+   */
+  public synchronized void report ( TaskListener listener ) {
+    if ( stats.isEmpty () ) {
+      return;
+    }
+    Stats total = new Stats ();
+    for ( Map.Entry<String, Stats> e : stats.entrySet () ) {
+      listener.getLogger ().println ( "Synced from " + e.getKey () + ": " + e
+              .getValue () );
+      total.add ( e.getValue () );
+    }
+    listener.getLogger ().println ( "Synced in total: " + total );
+    if ( !collisions.isEmpty () ) {
+      listener.error ( collisions.size ()
+                       + " files collided between executors:" );
+      for ( String c : collisions ) {
+        listener.getLogger ().println ( "  " + c );
+      }
+    }
+  }
+
+  /**
+   * Streams the files as a compressed archive straight into the workspace.
+   *
+   * @return compressed bytes sent
+   */
+  private long transfer ( final FilePath source,
+                          final Map<String, String> send ) throws IOException,
+                                                                  InterruptedException {
+    FastPipedInputStream in = new FastPipedInputStream ();
+    final Counter out = new Counter ( new FastPipedOutputStream ( in ),
+                                      throttle );
+    Future<Integer> archive = Computer.threadPoolForRemoting.submit (
+            new Callable<Integer> () {
+
+              @Override
+              public Integer call () throws Exception {
+                try {
+                  return source.archive ( ArchiverFactory.TARGZ, out,
+                                          new SnapshotCache.Selected ( send ) );
+                } finally {
+                  out.close ();
+                }
+              }
+            } );
+    try {
+      dest.untarFrom ( in, FilePath.TarCompression.GZIP );
+    } finally {
+      in.close ();
+    }
+    try {
+      archive.get ();
+    } catch ( ExecutionException ex ) {
+      throw new IOException ( "Failed to send files", ex.getCause () );
+    }
+    return out.count;
+  }
+
+  private static class Received {
+
+    private final String hash;
+    private final String owner;
+
+    Received ( String hash, String owner ) {
+      this.hash = hash;
+      this.owner = owner;
+    }
+  }
+
+  /**
+   * What one transfer does with the files it was offered.
+   */
+  static class Plan {
+
+    /**
+     * Paths to send.
+     */
+    final Map<String, String> send = new LinkedHashMap<String, String> ();
+    /**
+     * Paths to copy from another path already in the workspace.
+     */
+    final Map<String, String> copies = new LinkedHashMap<String, String> ();
+    final List<String> collisions = new ArrayList<String> ();
+    final Map<String, Received> claimed = new HashMap<String, Received> ();
+    int unchanged;
+    long bytes;
+  }
+
+  private static class Stats {
+
+    private int files;
+    private long bytes;
+    private long sent;
+    private int copied;
+    private int unchanged;
+    private int collisions;
+    private long waited;
+    private long time;
+
+    void add ( Stats s ) {
+      files += s.files;
+      bytes += s.bytes;
+      sent += s.sent;
+      copied += s.copied;
+      unchanged += s.unchanged;
+      collisions += s.collisions;
+      waited += s.waited;
+      time += s.time;
+    }
+
+    @Override
+    public String toString () {
+      StringBuilder sb = new StringBuilder ();
+      sb.append ( files ).append ( " files (" ).append ( bytes / 1024 )
+              .append ( " KiB, " ).append ( sent / 1024 ).append (
+              " KiB compressed) in " ).append ( TaskCoordinator
+              .durationString ( time ) );
+      if ( time > 0 ) {
+        sb.append ( " at " ).append ( sent * 1000 / time / 1024 ).append (
+                " KiB/s" );
+      }
+      sb.append ( ", " ).append ( copied ).append ( " deduplicated, " )
+              .append ( unchanged ).append ( " unchanged" );
+      if ( collisions > 0 ) {
+        sb.append ( ", " ).append ( collisions ).append ( " collisions" );
+      }
+      if ( waited > 0 ) {
+        sb.append ( ", waited " ).append ( TaskCoordinator.durationString (
+                waited ) ).append ( " for a transfer slot" );
+      }
+      return sb.toString ();
+    }
+  }
+
+  /**
+   * Token bucket holding up to a second's worth of bytes. Writers take what
+   * they need and wait off any shortfall, so the rate holds across them.
+   */
+  static class Throttle {
+
+    private final long rate;
+    private double tokens;
+    private long last = System.nanoTime ();
+
+    Throttle ( long rate ) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    /**
+     * @return milliseconds the caller has to wait before sending the bytes
+     */
+    synchronized long reserve ( long bytes, long now ) {
+      tokens = Math.min ( rate, tokens + ( now - last ) * rate / 1e9 );
+      last = now;
+      tokens -= bytes;
+      return tokens < 0 ? (long) Math.ceil ( -tokens * 1000 / rate ) : 0;
+    }
+
+    void take ( long bytes ) throws InterruptedException {
+      long wait = reserve ( bytes, System.nanoTime () );
+      if ( wait > 0 ) {
+        Thread.sleep ( wait );
+      }
+    }
+  }
+
+  private static class Counter extends FilterOutputStream {
+
+    private final Throttle throttle;
+    private long count;
+
+    Counter ( OutputStream out, Throttle throttle ) {
+      super ( out );
+      this.throttle = throttle;
+    }
+
+    @Override
+    public void write ( int b ) throws IOException {
+      write ( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write ( byte[] b, int off, int len ) throws IOException {
+      if ( throttle != null ) {
+        try {
+          throttle.take ( len );
+        } catch ( InterruptedException ex ) {
+          throw new InterruptedIOException ();
+        }
+      }
+      out.write ( b, off, len );
+      count += len;
+    }
+  }
+
+  /**
+   * Hashes the scanned files, run against the executor's workspace.
+   */
+  private static class Index implements
+          FilePath.FileCallable<List<SnapshotCache.Entry>> {
+
+    private static final long serialVersionUID = 1L;
+    private final DirScanner scanner;
+
+    Index ( DirScanner scanner ) {
+      this.scanner = scanner;
+    }
+
+    @Override
+    public List<SnapshotCache.Entry> invoke ( File dir, VirtualChannel channel )
+            throws IOException {
+      final List<SnapshotCache.Entry> rt = new ArrayList<SnapshotCache.Entry> ();
+      scanner.scan ( dir, new FileVisitor () {
+
+        @Override
+        public void visit ( File f, String relativePath ) throws IOException {
+          if ( f.isFile () ) {
+            rt.add ( new SnapshotCache.Entry ( relativePath, SnapshotCache
+                                               .hash ( f ), f.length (), f
+                                               .canExecute () ) );
+          }
+        }
+      } );
+      return rt;
+    }
+  }
+
+  /**
+   * Copies files within the workspace, run against the parent's workspace.
+   */
+  private static class Duplicate implements FilePath.FileCallable<Void> {
+
+    private static final long serialVersionUID = 1L;
+    private final Map<String, String> copies;
+
+    /**
+     * @param copies source path for each path to write
+     */
+    Duplicate ( Map<String, String> copies ) {
+      this.copies = copies;
+    }
+
+    @Override
+    public Void invoke ( File dir, VirtualChannel channel ) throws IOException {
+      for ( Map.Entry<String, String> e : copies.entrySet () ) {
+        File from = new File ( dir, e.getValue () );
+        File to = new File ( dir, e.getKey () );
+        File parent = to.getParentFile ();
+        if ( !parent.isDirectory () && !parent.mkdirs () ) {
+          throw new IOException ( "Failed to create " + parent );
+        }
+        SnapshotCache.copy ( from, to );
+        if ( from.canExecute () ) {
+          to.setExecutable ( true );
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+/**
+ * Copies an executor's sync files to the master in the background as tasks
+ * complete, each pass only sending what changed since the one before, so the
+ * final sync only has the remainder to flush.
+ * <p>
+ * At most one pass runs and one more waits, further requests fold into the
+ * waiting one so the executor never blocks on the master.
+ *
+ * @author David van Laatum
+ */
+public class SyncStream {
+
+  /**
+   * Overlap between passes so files written as a pass starts are sent again
+   * rather than missed on file systems with coarse timestamps.
+   */
+  private static final long SLACK = TimeUnit.SECONDS.toMillis ( 2 );
+
+  private final String pattern;
+  private final FilePath source;
+  private final SyncReceiver receiver;
+  private final String owner;
+  private final ExecutorService worker;
+  private final AtomicBoolean pending = new AtomicBoolean ();
+  private long since;
+  private int passes;
+  private int files;
+  private long time;
+  private volatile Exception failure;
+
+  public SyncStream ( String pattern, FilePath source, SyncReceiver receiver,
+                      final String owner ) {
+    this.pattern = pattern;
+    this.source = source;
+    this.receiver = receiver;
+    this.owner = owner;
+    this.worker = Executors.newSingleThreadExecutor ( new ThreadFactory () {
+
+      @Override
+      public Thread newThread ( Runnable r ) {
+        Thread t = new Thread ( r, "Sync files from " + owner );
+        t.setDaemon ( true );
+        return t;
+      }
+    } );
+  }
+
+  /**
+   * Queues a pass unless one is already waiting.
+   */
+  public void request ( final TaskListener listener ) {
+    if ( pending.compareAndSet ( false, true ) ) {
+      worker.submit ( new Runnable () {
+
+        @Override
+        public void run () {
+          pending.set ( false );
+          try {
+            sync ( listener );
+          } catch ( IOException ex ) {
+            fail ( listener, ex );
+          } catch ( InterruptedException ex ) {
+            fail ( listener, ex );
+          }
+        }
+      } );
+    }
+  }
+
+  /**
+   * Waits for queued passes and sends what is left.
+   *
+   * @return false if any pass failed
+   */
+  public boolean finish ( TaskListener listener ) throws IOException,
+                                                         InterruptedException {
+    worker.shutdown ();
+    try {
+      worker.awaitTermination ( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+    } finally {
+      worker.shutdownNow ();
+    }
+    int before;
+    synchronized ( this ) {
+      before = files;
+    }
+    int last = sync ( listener );
+    synchronized ( this ) {
+      listener.getLogger ().println (
+              "Copied " + files + " files in " + passes + " passes, "
+              + before + " while tasks ran and " + last + " at the end, "
+              + TaskCoordinator.durationString ( time ) + " spent copying" );
+    }
+    String stats = receiver.describe ( owner );
+    if ( stats != null ) {
+      listener.getLogger ().println ( "Synced " + stats );
+    }
+    return failure == null;
+  }
+
+  /**
+   * Stops background passes when the executor ends without reaching its
+   * sync step.
+   */
+  public void close () {
+    worker.shutdownNow ();
+  }
+
+  private void fail ( TaskListener listener, Exception ex ) {
+    if ( failure == null ) {
+      failure = ex;
+    }
+    listener.error ( "Failed to sync files: " + ex.getMessage () );
+  }
+
+  private synchronized int sync ( TaskListener listener ) throws IOException,
+                                                                 InterruptedException {
+    long start = System.currentTimeMillis ();
+    long now = source.act ( new Clock () );
+    int count = receiver.receive ( owner, source, new Since ( pattern,
+                                                              since ),
+                                   listener );
+    since = now - SLACK;
+    passes++;
+    files += count;
+    time += System.currentTimeMillis () - start;
+    return count;
+  }
+
+  /**
+   * Reads the clock where the files are, file times come from that clock.
+   */
+  private static class Clock implements FilePath.FileCallable<Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long invoke ( File f, VirtualChannel channel ) {
+      return System.currentTimeMillis ();
+    }
+  }
+
+  /**
+   * Files matching the pattern modified since the given time.
+   */
+  private static class Since extends DirScanner {
+
+    private static final long serialVersionUID = 1L;
+    private final String includes;
+    private final long since;
+
+    Since ( String includes, long since ) {
+      this.includes = includes;
+      this.since = since;
+    }
+
+    @Override
+    public void scan ( File dir, final FileVisitor visitor ) throws
+            IOException {
+      new DirScanner.Glob ( includes, null ).scan ( dir, new FileVisitor () {
+
+        @Override
+        public void visit ( File f, String relativePath ) throws IOException {
+          if ( f.isDirectory () || f.lastModified () >= since ) {
+            visitor.visit ( f, relativePath );
+          }
+        }
+      } );
+    }
+  }
+}
@@ -1,26 +1,46 @@
 package org.jenkinsci.plugins.DistributedTests;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.InvisibleAction;
+import hudson.model.Node;
 import static hudson.model.Result.*;
 import hudson.model.Result;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
-import net.sf.json.JSONSerializer;
-import org.apache.commons.io.IOUtils;
 
 /**
  * @author David van Laatum
@@ -29,103 +49,1480 @@ public class TaskCoordinator extends InvisibleAction {
 
   private static final Logger LOG
           = Logger.getLogger ( TaskCoordinator.class.getName () );
-  private transient final DistributedBuild build;
+  private static final int MAX_BATCH = 100;
+  private static final double SPECULATE_FACTOR = 1.5;
+  private static final long SPECULATE_MIN = TimeUnit.SECONDS.toMillis ( 30 );
+  private static final long POLL = TimeUnit.SECONDS.toMillis ( 5 );
+  private static final int CHUNK = 1000;
+  private static final String TASK_FILE = "tasks.dat";
+  private static final int MAGIC = 0x44545431;
+  /**
+   * Task file with the tasks' log ranges.
+   */
+  private static final int MAGIC2 = 0x44545432;
+  /**
+   * Task count from which tasks are kept in a side file instead of build.xml.
+   */
+  private static final int SIDE_FILE_THRESHOLD = Integer.getInteger (
+          TaskCoordinator.class.getName () + ".sideFileThreshold", 1000 );
+  static final Interner<String> STRINGS = Interners.newWeakInterner ();
+  private static final DistributedRun[] NO_HOLDERS = new DistributedRun[0];
+  private static final AtomicIntegerFieldUpdater<Task> COPIES
+          = AtomicIntegerFieldUpdater.newUpdater ( Task.class, "copies" );
+  private static final AtomicIntegerFieldUpdater<Task> PENDING
+          = AtomicIntegerFieldUpdater.newUpdater ( Task.class, "pending" );
+  private static final AtomicIntegerFieldUpdater<TaskCoordinator> VERSION
+          = AtomicIntegerFieldUpdater.newUpdater ( TaskCoordinator.class,
+                                                   "version" );
+  private transient DistributedBuild build;
   private transient BuildListener listener;
+  private transient volatile int version;
 
-  private transient Queue<Task> taskQueue;
+  private transient volatile Task[] order;
+  private transient volatile Ready ready;
+  private transient boolean dependencies;
+  private transient volatile boolean loading;
+  private transient AtomicInteger outstanding;
+  private transient Map<String, NodeQueue> affine;
+  private transient volatile DurationPredictor predictor;
+  private transient volatile WorkspaceSnapshot snapshot;
+  private transient volatile SyncReceiver receiver;
+  private transient final Queue<Task> requeued
+          = new ConcurrentLinkedQueue<Task> ();
+  private transient final Object signal = new Object ();
+  private transient final BlockingQueue<DistributedRun> changed
+          = new LinkedBlockingQueue<DistributedRun> ();
   private List<Task> tasks;
-  private SortedMap<String, Task> tasklist = new TreeMap<String, Task> ();
+  private volatile SortedMap<String, Task> tasklist
+          = new TreeMap<String, Task> ();
+  private String taskFile;
+  /**
+   * Set when the side file could not be read, the empty list standing in for
+   * it must never be written over it.
+   */
+  private transient boolean unreadable;
+  /**
+   * The version the side file was last written or read at.
+   */
+  private transient int saved;
 
   TaskCoordinator ( DistributedBuild build ) {
     this.build = build;
   }
 
+  /**
+   * Reads the task list and hands tasks to the executors in growing chunks
+   * while the rest of the file is still being read, each chunk merged into
+   * the dispatch order by prediction. Tasks with prerequisites are held back
+   * until the whole list is known.
+   */
   public void readTasks ( InputStream source ) throws IOException {
-    StringWriter writer = new StringWriter ();
-    IOUtils.copy ( source, writer );
-    JSONArray a = (JSONArray) JSONSerializer.toJSON ( writer.toString () );
-    for ( Object v : a ) {
-      Task t = new Task ( (JSONObject) v );
+    startLoading ();
+    try {
+      TaskHistory history = build.getProject ().getTaskHistory ();
+      List<Integer> previous = findPrevious ( history,
+                                              DurationPredictor.HISTORY );
+      DurationPredictor predictor = new DurationPredictor ();
+      for ( int i = previous.size () - 1; i >= 0; i-- ) {
+        for ( TaskHistory.Entry t2 : history.getEntries ( previous.get ( i ) ) ) {
+          if ( t2.isSample () ) {
+            predictor.addSample ( t2.getName (), t2.getNode (), t2
+                                  .getDuration () );
+          }
+        }
+      }
+      // computed before the predictor is shared with the executors
+      predictor.getNodeFactors ();
+      this.predictor = predictor;
+
+      TaskListReader reader = new TaskListReader ( new InputStreamReader (
+              source ) );
+      List<Task> chunk = new ArrayList<Task> ();
+      int limit = CHUNK;
+      int known = 0;
+      for ( TaskListReader.Entry e = reader.next (); e != null; e = reader
+              .next () ) {
+        if ( getTask ( e.getName () ) != null ) {
+          listener.getLogger ().println ( "Ignoring duplicate task " + e
+                  .getName () );
+          continue;
+        }
+        Task t = new Task ( e.getName (), e.getEnv (), e.getDependsOn () );
+        if ( applyHistory ( t, history, previous, predictor ) ) {
+          known++;
+        }
+        addTask ( t );
+        if ( t.dependsOn == null ) {
+          chunk.add ( t );
+          if ( chunk.size () >= limit ) {
+            offer ( chunk );
+            chunk = new ArrayList<Task> ();
+            limit *= 2;
+          }
+        }
+      }
+      offer ( chunk );
+
+      int count = getTasks ().size ();
+      listener.getLogger ().println ( "Read " + count + " tasks" );
+      listener.getLogger ().println ( "Predicted durations for " + known
+                                              + " of " + count
+                                              + " tasks from history" );
+      StringBuilder factors = new StringBuilder ();
+      for ( Map.Entry<String, Double> e : predictor.getNodeFactors ()
+              .entrySet () ) {
+        factors.append ( factors.length () > 0 ? ", " : "" )
+                .append ( e.getKey ().isEmpty () ? "master" : e.getKey () )
+                .append ( String.format ( " x%.2f", e.getValue () ) );
+      }
+      if ( factors.length () > 0 ) {
+        listener.getLogger ().println ( "Node speed factors: " + factors );
+      }
+      queueTasks ();
+    } catch ( IOException ex ) {
+      abortLoading ();
+      throw ex;
+    } catch ( RuntimeException ex ) {
+      abortLoading ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Fills in the durations and node a task had in earlier builds.
+   *
+   * @return true if the task's own history was found
+   */
+  private boolean applyHistory ( Task t, TaskHistory history,
+                                 List<Integer> previous,
+                                 DurationPredictor predictor ) {
+    if ( !previous.isEmpty () ) {
+      TaskHistory.Entry t2 = history.getEntry ( t.getName (), previous.get (
+                                                0 ) );
+      if ( t2 != null ) {
+        Long d = t2.getDuration ();
+        t.lastDuration = d != null ? d : 0;
+      }
+    }
+    for ( int i = 0; i < previous.size () && t.lastNode == null; i++ ) {
+      TaskHistory.Entry t2 = history.getEntry ( t.getName (), previous.get (
+                                                i ) );
+      if ( t2 != null ) {
+        t.lastNode = t2.getNode ();
+      }
+    }
+    t.predictedDuration = predictor.predict ( t.getName () );
+    return predictor.isKnown ( t.getName () );
+  }
+
+  void addTask ( Task t ) {
+    if ( build != null ) {
       t.buildnumber = build.getNumber ();
-      tasklist.put ( t.getName (), t );
     }
+    SortedMap<String, Task> l = tasklist ();
+    synchronized ( l ) {
+      l.put ( t.getName (), t );
+    }
+    changed ( t );
+  }
+
+  /**
+   * Stamps a task with the next version once it has changed.
+   */
+  private void changed ( Task t ) {
+    t.version = VERSION.incrementAndGet ( this );
+  }
+
+  /**
+   * @return the version of the latest change to any task, 0 for a build that
+   *         has been loaded
+   */
+  public int getVersion () {
+    return version;
+  }
+
+  /**
+   * @param since a version returned by {@link #getVersion()}, 0 for all
+   * @return tasks changed after the given version in name order, all of them
+   *         if the version is not from this coordinator. Tasks that change
+   *         while this runs may be included again next time.
+   */
+  public Task[] getChanges ( int since ) {
+    return getChanges ( snapshot (), since );
+  }
+
+  /**
+   * @param all tasks from {@link #getTaskArray()}, for callers that also
+   *            need every task
+   *
+   * @see #getChanges(int)
+   */
+  Task[] getChanges ( Task[] all, int since ) {
+    if ( since <= 0 || since > getVersion () ) {
+      return all;
+    }
+    List<Task> rt = new ArrayList<Task> ();
+    for ( Task t : all ) {
+      if ( t.version > since ) {
+        rt.add ( t );
+      }
+    }
+    return rt.toArray ( new Task[rt.size ()] );
+  }
+
+  /**
+   * @return every task, cheaper than {@link #getTasks()}
+   */
+  Task[] getTaskArray () {
+    return snapshot ();
+  }
+
+  /**
+   * Prepares an empty dispatch order so executors can start before the task
+   * list has been read, they wait until tasks arrive or loading ends.
+   */
+  synchronized void startLoading () {
+    if ( ready == null ) {
+      outstanding = new AtomicInteger ();
+      affine = new HashMap<String, NodeQueue> ();
+      order = new Task[0];
+      loading = true;
+      ready = new Ready ( new Task[0] );
+    }
+  }
+
+  /**
+   * Stops the wait for tasks after the task list could not be read, tasks
+   * nobody claimed yet are marked not built.
+   */
+  void abortLoading () {
+    startLoading ();
+    for ( Task t : getTasks () ) {
+      if ( t.reserve () && t.complete ( NOT_BUILT )
+                   && t.queued ) {
+        finished ( t );
+      }
+    }
+    loading = false;
+    synchronized ( signal ) {
+      signal.notifyAll ();
+    }
+  }
+
+  /**
+   * Makes a chunk of tasks read so far available to the executors.
+   */
+  private void offer ( List<Task> chunk ) {
+    if ( chunk.isEmpty () ) {
+      return;
+    }
+    for ( Task t : chunk ) {
+      t.criticalPath = weight ( t );
+      t.queued = true;
+    }
+    outstanding.addAndGet ( chunk.size () );
+    order = snapshot ();
+    publish ( chunk );
+  }
+
+  /**
+   * Fixes the dispatch order once every task is known. Tasks are handed out
+   * by bumping an atomic cursor over the sorted array of ready tasks so
+   * executors never queue up on a monitor.
+   */
+  synchronized void queueTasks () {
+    startLoading ();
+    Task[] o = snapshot ();
+    List<Task> fresh = new ArrayList<Task> ();
+    for ( Task t : o ) {
+      if ( !t.queued ) {
+        t.queued = true;
+        fresh.add ( t );
+      }
+    }
+    outstanding.addAndGet ( fresh.size () );
+    link ( o );
+    Arrays.sort ( o );
+    Map<String, List<Task>> byNode = new HashMap<String, List<Task>> ();
+    for ( Task t : o ) {
+      if ( t.lastNode != null ) {
+        List<Task> l = byNode.get ( t.lastNode );
+        if ( l == null ) {
+          l = new ArrayList<Task> ();
+          byNode.put ( t.lastNode, l );
+        }
+        l.add ( t );
+      }
+    }
+    Map<String, NodeQueue> a = new HashMap<String, NodeQueue> ();
+    for ( Map.Entry<String, List<Task>> e : byNode.entrySet () ) {
+      a.put ( e.getKey (), new NodeQueue ( e.getValue ().toArray (
+              new Task[e.getValue ().size ()] ) ) );
+    }
+    affine = a;
+    order = o;
+    List<Task> r = new ArrayList<Task> ();
+    for ( Task t : fresh ) {
+      if ( t.isReady () && !t.isClaimed () ) {
+        r.add ( t );
+      }
+    }
+    // linking changed the critical paths, so the tasks already offered are
+    // sorted again along with the fresh ones instead of merged
+    Ready current = ready;
+    for ( int i = current.cursor.get (); i < current.tasks.length; i++ ) {
+      if ( !current.tasks[i].isClaimed () ) {
+        r.add ( current.tasks[i] );
+      }
+    }
+    Collections.sort ( r );
+    loading = false;
+    setReady ( r );
+  }
 
-    if ( listener != null ) {
-      listener.getLogger ().println ( "Read " + tasklist.size () + " tasks" );
+  /**
+   * Every task left waiting after the topological sort has a prerequisite
+   * that is also left waiting, so following those from any of them must
+   * come back round to a task already seen.
+   *
+   * @return the names of the tasks on one cycle in dependency order, ending
+   *         with the first again
+   */
+  private String cycle ( Task[] o, Map<Task, Integer> waiting ) {
+    List<Task> path = new ArrayList<Task> ();
+    Task t = null;
+    for ( int i = 0; t == null && i < o.length; i++ ) {
+      if ( waiting.get ( o[i] ) > 0 ) {
+        t = o[i];
+      }
+    }
+    while ( !path.contains ( t ) ) {
+      path.add ( t );
+      Task next = null;
+      for ( String name : t.getDependsOn () ) {
+        Task d = getTask ( name );
+        if ( waiting.get ( d ) > 0 ) {
+          next = d;
+          break;
+        }
+      }
+      t = next;
     }
+    StringBuilder rt = new StringBuilder ();
+    for ( Task c : path.subList ( path.indexOf ( t ), path.size () ) ) {
+      rt.append ( c.getName () ).append ( " -> " );
+    }
+    return rt.append ( t.getName () ).toString ();
+  }
 
-    TaskCoordinator tc = findPrevious ();
-    if ( tc != null ) {
-      for ( Task t : tasklist.values () ) {
-        Task t2 = tc.getTask ( t.getName () );
-        if ( t2 != null ) {
-          t.lastDuration = t2.getDuration ();
+  /**
+   * Resolves the dependsOn names and computes every task's critical path,
+   * its own predicted duration plus the longest chain of tasks waiting on
+   * it.
+   *
+   * @throws IllegalArgumentException if a dependency is unknown or the
+   *                                  dependencies form a cycle
+   */
+  private void link ( Task[] o ) {
+    for ( Task t : o ) {
+      t.dependents = null;
+    }
+    Map<Task, Task> failed = new LinkedHashMap<Task, Task> ();
+    Map<Task, Integer> waiting = new HashMap<Task, Integer> ();
+    List<Task> sorted = new ArrayList<Task> ( o.length );
+    for ( Task t : o ) {
+      if ( t.dependsOn != null ) {
+        for ( String name : t.dependsOn ) {
+          Task d = getTask ( name );
+          if ( d == null ) {
+            throw new IllegalArgumentException ( "Task " + t.getName ()
+                                                         + " depends on unknown task "
+                                                         + name );
+          }
+          if ( d.dependents == null ) {
+            d.dependents = new ArrayList<Task> ( 1 );
+          }
+          d.dependents.add ( t );
+          if ( !d.settled ) {
+            PENDING.incrementAndGet ( t );
+          } else if ( d.getResult ().isWorseThan ( UNSTABLE ) ) {
+            failed.put ( t, d );
+          }
+          dependencies = true;
         }
       }
+      int w = t.dependsOn != null ? t.dependsOn.size () : 0;
+      waiting.put ( t, w );
+      if ( w == 0 ) {
+        sorted.add ( t );
+      }
     }
-    taskQueue = new PriorityQueue<Task> ();
-    for ( Task t : tasklist.values () ) {
-      taskQueue.add ( t );
+    for ( int i = 0; i < sorted.size (); i++ ) {
+      for ( Task d : sorted.get ( i ).getDependents () ) {
+        int w = waiting.get ( d ) - 1;
+        waiting.put ( d, w );
+        if ( w == 0 ) {
+          sorted.add ( d );
+        }
+      }
+    }
+    if ( sorted.size () < o.length ) {
+      throw new IllegalArgumentException ( "Task dependencies form a cycle: "
+                                                   + cycle ( o, waiting ) );
+    }
+    for ( int i = sorted.size () - 1; i >= 0; i-- ) {
+      Task t = sorted.get ( i );
+      long longest = 0;
+      for ( Task d : t.getDependents () ) {
+        longest = Math.max ( longest, d.criticalPath );
+      }
+      t.criticalPath = weight ( t ) + longest;
+    }
+    for ( Map.Entry<Task, Task> e : failed.entrySet () ) {
+      if ( skip ( e.getKey (), e.getValue () ) ) {
+        finished ( e.getKey () );
+      }
     }
   }
 
-  protected TaskCoordinator findPrevious () {
-    TaskCoordinator tc = null;
-    DistributedBuild last = build.getPreviousBuild ();
-    while ( last != null && ( last.getResult () == NOT_BUILT
-                              || last.getResult () == ABORTED
-                              || last.getResult () == FAILURE ) ) {
-      last = last.getPreviousBuild ();
+  /**
+   * Publishes a new ready array made of the tasks released by a completed
+   * prerequisite and the tasks of the current array nobody has claimed yet.
+   * Executors still working from the old array are kept honest by the
+   * per-task claim.
+   */
+  private synchronized void publish ( List<Task> released ) {
+    Task[] add = released.toArray ( new Task[released.size ()] );
+    Arrays.sort ( add );
+    // the current array is sorted from the cursor on, merge into it
+    Ready r = ready;
+    int i = r.cursor.get ();
+    int j = 0;
+    List<Task> l = new ArrayList<Task> ( Math.max ( r.tasks.length - i, 0 )
+                                         + add.length );
+    while ( i < r.tasks.length || j < add.length ) {
+      if ( j == add.length || i < r.tasks.length && r.tasks[i]
+              .compareTo ( add[j] ) <= 0 ) {
+        if ( !r.tasks[i].isClaimed () ) {
+          l.add ( r.tasks[i] );
+        }
+        i++;
+      } else {
+        l.add ( add[j++] );
+      }
+    }
+    setReady ( l );
+  }
+
+  private void setReady ( List<Task> sorted ) {
+    ready = new Ready ( sorted.toArray ( new Task[sorted.size ()] ) );
+    synchronized ( signal ) {
+      signal.notifyAll ();
     }
-    if ( last != null ) {
-      tc = last.getAction ( TaskCoordinator.class );
-      if ( tc != null ) {
-        listener.getLogger ().println ( "Using Tasks from build " + last
-                .getNumber () + " for comparision" );
+  }
+
+  /**
+   * Accounts for a completed task and releases the tasks waiting on it. When
+   * it failed the tasks depending on it, directly or not, are marked not
+   * built without running.
+   */
+  private synchronized void finished ( Task task ) {
+    List<Task> done = new ArrayList<Task> ();
+    List<Task> released = new ArrayList<Task> ();
+    done.add ( task );
+    while ( !done.isEmpty () ) {
+      Task t = done.remove ( done.size () - 1 );
+      t.settled = true;
+      outstanding.decrementAndGet ();
+      if ( t.dependents == null ) {
+        continue;
+      }
+      boolean failed = t.getResult ().isWorseThan ( UNSTABLE );
+      for ( Task d : t.dependents ) {
+        if ( failed ) {
+          if ( skip ( d, t ) ) {
+            done.add ( d );
+          }
+        } else if ( PENDING.decrementAndGet ( d ) == 0 ) {
+          released.add ( d );
+        }
+      }
+    }
+    if ( !released.isEmpty () ) {
+      publish ( released );
+    }
+  }
+
+  /**
+   * Marks a task not built because a prerequisite failed, unless an executor
+   * already claimed it.
+   */
+  private boolean skip ( Task t, Task cause ) {
+    if ( t.reserve () && t.complete ( NOT_BUILT ) ) {
+      listener.getLogger ().println ( "Skipping " + t.getName () + " as "
+                                              + cause.getName () + " failed" );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the name of the node a task from an earlier build ran on, looked
+   *         up from its executor for builds that did not record it
+   */
+  String nodeOf ( Task t ) {
+    if ( t.node != null ) {
+      return t.node;
+    }
+    if ( build == null || t.getBuildnumber () == null ) {
+      return null;
+    }
+    DistributedBuild b = build.getProject ().getBuildByNumber ( t
+            .getBuildnumber () );
+    if ( b != null ) {
+      DistributedRun run = t.getExecutor () != null ? b.getRun ( t
+              .getExecutor () ) : null;
+      if ( run != null ) {
+        return run.getBuiltOnStr ();
       }
     }
-    if ( tc == null ) {
+    return null;
+  }
+
+  protected List<Integer> findPrevious ( TaskHistory history, int count ) {
+    List<Integer> rt = history.getBuilds ( build.getNumber (), count );
+    StringBuilder numbers = new StringBuilder ();
+    for ( Integer n : rt ) {
+      numbers.append ( numbers.length () > 0 ? ", #" : "#" ).append ( n );
+    }
+    if ( rt.isEmpty () ) {
       listener.getLogger ().println (
               "Failed to find previous build to use for comparision" );
+    } else {
+      listener.getLogger ().println ( "Using Tasks from builds " + numbers
+                                              + " for comparision" );
     }
-    return tc;
+    return rt;
   }
 
   public DistributedBuild getBuild () {
     return build;
   }
 
-  public synchronized Task getNextTask ( DistributedRun run ) {
-    Task t = taskQueue.poll ();
-    if ( t != null ) {
+  /**
+   * Hands out the next batch of tasks for an executor. Batching is sized from
+   * the predicted durations toward the project's batch target and shrinks
+   * near the end of the queue, a single task is returned when batching is
+   * disabled. Once the queue is drained, and tasks are still being read, can
+   * be retried, speculatively duplicated or are waiting on prerequisites, the
+   * executor waits while other tasks are running. An empty list means there
+   * is nothing left to run.
+   */
+  public List<Task> getNextTasks ( DistributedRun run ) throws
+          InterruptedException {
+    DistributedProject project = run.getProject ().getParent ();
+    List<Task> batch = Collections.emptyList ();
+    if ( project.isNodeAffinity () ) {
+      Task t = getAffineTask ( run.getProject ().getNumber (), run
+                               .getBuiltOnStr (), project.getExecutors () );
+      if ( t != null ) {
+        batch = Collections.singletonList ( t );
+      }
+    }
+    if ( batch.isEmpty () ) {
+      Task t = getTailTask ( run.getProject ().getNumber (), getNodeFactor (
+                             run.getBuiltOnStr () ), project.getExecutors () );
+      if ( t != null ) {
+        batch = Collections.singletonList ( t );
+      }
+    }
+    if ( batch.isEmpty () ) {
+      batch = getNextTasks ( run.getProject ().getNumber (),
+                             TimeUnit.SECONDS.toMillis ( project
+                                     .getBatchTarget () ),
+                             project.getExecutors () );
+    }
+    boolean speculative = false;
+    while ( batch.isEmpty () && ( project.isSpeculative ()
+                                  || project.getTaskRetries () > 0
+                                  || dependencies || loading ) ) {
+      checkLeases ();
+      batch = getNextTasks ( run.getProject ().getNumber (), 0, 0 );
+      if ( !batch.isEmpty () || !loading && ( outstanding.get () == 0
+                                              || !hasLiveTasks ()
+                                                 && !hasUnclaimedTasks () ) ) {
+        break;
+      }
+      if ( project.isSpeculative () ) {
+        Task t = speculate ( System.currentTimeMillis () );
+        if ( t != null ) {
+          batch = Collections.singletonList ( t );
+          speculative = true;
+          break;
+        }
+      }
+      synchronized ( signal ) {
+        signal.wait ( POLL );
+      }
+    }
+    if ( !batch.isEmpty () ) {
+      StringBuilder names = new StringBuilder ();
+      for ( Task t : batch ) {
+        t.addHolder ( run );
+        if ( !speculative ) {
+          // a duplicate leaves the original's node, complete records the winner
+          t.node = run.getBuiltOnStr ();
+        }
+        names.append ( names.length () > 0 ? ", " : "" ).append ( t
+                .getName () );
+      }
       listener.getLogger ()
-              .println ( "Allocating " + t.getName () + " to "
+              .println ( ( speculative ? "Speculatively allocating "
+                           : "Allocating " ) + names + " to "
                                  + run.getProject ().getDisplayName () );
-      t.executor = run.getProject ().getNumber ();
-      t.started = new Date ();
-      t.running = true;
     }
-    return t;
+    return batch;
+  }
+
+  /**
+   * Releases the tasks an executor still holds when it stops without
+   * completing them, so they can be retried by the remaining executors.
+   */
+  public void release ( DistributedRun run ) {
+    List<Task> held = run.getCurrentTasks ();
+    if ( held != null ) {
+      for ( Task t : held ) {
+        release ( t, run );
+      }
+    }
+  }
+
+  /**
+   * Called as an executor's run starts or completes, wakes the parent build.
+   */
+  void executorChanged ( DistributedRun run ) {
+    changed.add ( run );
+    synchronized ( signal ) {
+      signal.notifyAll ();
+    }
+  }
+
+  /**
+   * Waits for an executor to start or complete, giving up after the lease
+   * check interval so stalled executors are still noticed.
+   */
+  void awaitExecutors () throws InterruptedException {
+    if ( changed.poll ( POLL, TimeUnit.MILLISECONDS ) != null ) {
+      changed.clear ();
+    }
+  }
+
+  /**
+   * @return true once the task list has been read and every task has
+   *         completed, executors that have not started yet are not needed
+   */
+  boolean isDone () {
+    return ready != null && !loading && outstanding.get () == 0;
+  }
+
+  /**
+   * Checks the owner of every running task is still building on an online
+   * node and releases the tasks of those that are not.
+   */
+  public void checkLeases () {
+    Task[] o = order;
+    if ( o == null ) {
+      return;
+    }
+    for ( Task t : o ) {
+      if ( t.running ) {
+        for ( DistributedRun holder : t.getHolders () ) {
+          if ( !isAlive ( holder ) ) {
+            release ( t, holder );
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isAlive ( DistributedRun run ) {
+    if ( !run.isBuilding () ) {
+      return false;
+    }
+    Node node = run.getBuiltOn ();
+    Computer computer = node != null ? node.toComputer () : null;
+    return computer != null && computer.isOnline ();
+  }
+
+  private void release ( Task t, DistributedRun run ) {
+    if ( !t.drop ( run ) ) {
+      return;
+    }
+    int retries = run.getProject ().getParent ().getTaskRetries ();
+    if ( t.attempts <= retries ) {
+      listener.getLogger ().println ( run.getProject ().getDisplayName ()
+                                              + " stopped while running "
+                                              + t.getName ()
+                                              + ", requeueing it (retry "
+                                              + t.attempts + " of " + retries
+                                              + ")" );
+      requeued.add ( t );
+    } else {
+      listener.getLogger ().println ( run.getProject ().getDisplayName ()
+                                              + " stopped while running "
+                                              + t.getName ()
+                                              + ", no retries left" );
+      if ( t.complete ( FAILURE ) ) {
+        finished ( t );
+      }
+    }
+    synchronized ( signal ) {
+      signal.notifyAll ();
+    }
+  }
+
+  /**
+   * @return true if a task is still waiting to be claimed, typically because
+   *         its prerequisites are still running
+   */
+  private boolean hasUnclaimedTasks () {
+    for ( Task t : order ) {
+      if ( !t.run && !t.isClaimed () ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hasLiveTasks () {
+    for ( Task t : order ) {
+      if ( t.running ) {
+        for ( DistributedRun holder : t.getHolders () ) {
+          if ( holder.isBuilding () ) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Picks the running task that has overrun its prediction the most and
+   * claims a second copy of it.
+   */
+  Task speculate ( long now ) {
+    Task[] o = order;
+    if ( o == null ) {
+      return null;
+    }
+    Task best = null;
+    long overrun = 0;
+    for ( Task t : o ) {
+      long started = t.startTime;
+      if ( t.running && started != 0 && !t.batched && t.copies == 1
+                   && t.predictedDuration > 0 ) {
+        long elapsed = now - started;
+        long expected = Math.round ( t.predictedDuration * getNodeFactor (
+                t.node ) );
+        if ( elapsed > expected * SPECULATE_FACTOR
+                     && elapsed - expected > SPECULATE_MIN
+                     && elapsed - expected > overrun ) {
+          best = t;
+          overrun = elapsed - expected;
+        }
+      }
+    }
+    if ( best != null && best.duplicate () ) {
+      return best;
+    }
+    return null;
+  }
+
+  List<Task> getNextTasks ( int executor, long target, int executors ) {
+    if ( target <= 0 ) {
+      Task t = getNextTask ( executor );
+      return t != null ? Collections.singletonList ( t ) : Collections
+              .<Task>emptyList ();
+    }
+    Ready r = ready;
+    if ( r == null ) {
+      return Collections.emptyList ();
+    }
+    Task requeue = pollRequeued ( executor );
+    if ( requeue != null ) {
+      return Collections.singletonList ( requeue );
+    }
+    Task[] o = r.tasks;
+    while ( true ) {
+      int i = r.cursor.get ();
+      if ( i >= o.length ) {
+        return Collections.emptyList ();
+      }
+      long limit = Math.min ( target, r.remaining[i] / ( 2L * Math.max (
+                              executors, 1 ) ) );
+      int n = 1;
+      long sum = weight ( o[i] );
+      while ( i + n < o.length && n < MAX_BATCH
+                      && sum + weight ( o[i + n] ) <= limit ) {
+        sum += weight ( o[i + n] );
+        n++;
+      }
+      if ( r.cursor.compareAndSet ( i, i + n ) ) {
+        List<Task> batch = new ArrayList<Task> ( n );
+        for ( int j = i; j < i + n; j++ ) {
+          if ( o[j].claim () ) {
+            batch.add ( o[j] );
+          }
+        }
+        for ( Task t : batch ) {
+          t.start ( executor, batch.size () > 1 );
+        }
+        if ( !batch.isEmpty () ) {
+          return batch;
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands out the longest task that last ran on the given node. The node's
+   * own list is skipped when the head of the global order is too long to be
+   * left for later without unbalancing the executors.
+   */
+  Task getAffineTask ( int executor, String node, int executors ) {
+    Ready r = ready;
+    NodeQueue q = r != null && node != null ? affine.get ( node ) : null;
+    if ( q == null ) {
+      return null;
+    }
+    Task[] o = r.tasks;
+    int i = r.cursor.get ();
+    while ( i < o.length && o[i].isClaimed () ) {
+      i++;
+    }
+    if ( i < o.length && weight ( o[i] ) * Math.max ( executors, 1 )
+                                 > r.remaining[i] ) {
+      return null;
+    }
+    Task t = q.next ();
+    while ( t != null ) {
+      if ( t.claim () ) {
+        t.start ( executor, false );
+        return t;
+      }
+      t = q.next ();
+    }
+    return null;
+  }
+
+  /**
+   * Keeps the longest tasks off slow nodes near the end of the queue. Once
+   * the head of the order would take a slow node longer than the executors'
+   * share of the remaining work, the node is given the longest following
+   * task it can finish in no more time than the head takes elsewhere.
+   */
+  Task getTailTask ( int executor, double factor, int executors ) {
+    Ready r = ready;
+    if ( r == null || factor <= 1 ) {
+      return null;
+    }
+    Task[] o = r.tasks;
+    int i = r.cursor.get ();
+    while ( i < o.length && o[i].isClaimed () ) {
+      i++;
+    }
+    if ( i >= o.length || weight ( o[i] ) * factor * Math.max ( executors, 1 )
+                                  <= r.remaining[i] ) {
+      return null;
+    }
+    long head = weight ( o[i] );
+    for ( int j = i + 1; j < o.length && j <= i + MAX_BATCH; j++ ) {
+      Task t = o[j];
+      if ( weight ( t ) * factor <= head && t.claim () ) {
+        t.start ( executor, false );
+        return t;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the speed factor learnt for the node, 1 when unknown
+   */
+  double getNodeFactor ( String node ) {
+    DurationPredictor p = predictor;
+    return p != null ? p.getNodeFactor ( node ) : 1;
+  }
+
+  /**
+   * Estimates when the last task finishes by playing the tasks left through
+   * the executors still taking tasks, in dispatch order at their predicted
+   * durations scaled by each node's speed factor. Running tasks are expected
+   * to take their prediction, or to finish now once they have overrun it.
+   * Executors still waiting in the queue are counted as free now.
+   *
+   * @param runs    the build's executors that started
+   * @param pending the number of executors still waiting in the queue
+   *
+   * @return the estimated finish, 0 if no executor is left to run the
+   *         tasks
+   */
+  long estimateFinish ( List<DistributedRun> runs, int pending, long now ) {
+    ScheduleSimulator sim = new ScheduleSimulator ();
+    Map<Integer, Integer> executors = new HashMap<Integer, Integer> ();
+    for ( DistributedRun r : runs ) {
+      BuildStage stage = r.getStage ();
+      if ( r.isBuilding () && ( stage == null || stage.compareTo (
+                                BuildStage.Running ) <= 0 ) ) {
+        executors.put ( r.getProject ().getNumber (), sim.addExecutor (
+                        now, getNodeFactor ( r.getBuiltOnStr () ) ) );
+      }
+    }
+    for ( int i = 0; i < pending; i++ ) {
+      sim.addExecutor ( now, 1 );
+    }
+    Task[] all = snapshot ();
+    Map<Integer, Long> batches = new HashMap<Integer, Long> ();
+    List<Task> waiting = new ArrayList<Task> ();
+    for ( Task t : all ) {
+      if ( t.running ) {
+        Integer e = executors.get ( t.executor );
+        if ( e == null ) {
+          continue;
+        }
+        // tasks of a batch start together and run one after another
+        Long before = batches.get ( e );
+        long expected = ( before != null ? before : 0 ) + Math.round (
+                t.predictedDuration * getNodeFactor ( t.node ) );
+        batches.put ( e, expected );
+        sim.addRunning ( t.name, e, Math.max ( now, t.startTime + expected ) );
+      } else if ( !t.run ) {
+        waiting.add ( t );
+      }
+    }
+    Collections.sort ( waiting );
+    for ( Task t : waiting ) {
+      sim.addTask ( t.name, t.predictedDuration, t.dependsOn );
+    }
+    ScheduleSimulator.Result rt = sim.run ( now );
+    return rt.getUnscheduled () > 0 ? 0 : rt.getFinish ();
+  }
+
+  /**
+   * @return the longest chain of predicted durations among the tasks not
+   *         run yet, no schedule finishes sooner than this from now
+   */
+  long getRemainingCriticalPath () {
+    long rt = 0;
+    for ( Task t : snapshot () ) {
+      if ( !t.run && !t.running ) {
+        rt = Math.max ( rt, t.criticalPath );
+      }
+    }
+    return rt;
+  }
+
+  private Task pollRequeued ( int executor ) {
+    Task t = requeued.poll ();
+    while ( t != null ) {
+      if ( t.claim () ) {
+        t.start ( executor, false );
+        return t;
+      }
+      t = requeued.poll ();
+    }
+    return null;
+  }
+
+  /**
+   * Completes a batch that ran as one invocation. Tasks the build steps
+   * reported take their own result and time, laid end to end from the start
+   * of the batch. The others get the result of the invocation and share the
+   * rest of its time in proportion to their predicted durations; that time
+   * is only an estimate, so they are marked synthetic and left out of the
+   * history. When another copy of a task completes first the result is
+   * discarded, otherwise any other executor still running a copy is told to
+   * abandon it.
+   *
+   * @param reported the results the build steps wrote for the tasks
+   *
+   * @return false if the results of every task were discarded
+   */
+  public boolean complete ( DistributedRun run, List<Task> batch,
+                            Result status, TaskResults reported ) {
+    boolean rt = false;
+    if ( batch.size () == 1 ) {
+      rt = complete ( run, batch.get ( 0 ), status );
+    } else {
+      long start = batch.get ( 0 ).startTime;
+      long wall = System.currentTimeMillis () - start;
+      long timed = 0;
+      long total = 0;
+      for ( Task t : batch ) {
+        TaskResults.Entry e = reported.get ( t.getName () );
+        if ( e != null && e.getDuration () >= 0 ) {
+          timed += e.getDuration ();
+        } else {
+          total += weight ( t );
+        }
+      }
+      long left = Math.max ( 0, wall - timed );
+      long offset = 0;
+      for ( Task t : batch ) {
+        TaskResults.Entry e = reported.get ( t.getName () );
+        boolean measured = e != null && e.getDuration () >= 0;
+        long share = measured ? e.getDuration () : left * weight ( t ) / total;
+        if ( complete ( run, t, e != null ? e.getResult () : status ) ) {
+          rt = true;
+          t.synthetic = !measured;
+          t.startTime = start + offset;
+          t.finishTime = start + offset + share;
+          changed ( t );
+        }
+        offset += share;
+      }
+    }
+    synchronized ( signal ) {
+      signal.notifyAll ();
+    }
+    return rt;
+  }
+
+  private boolean complete ( DistributedRun run, Task t, Result status ) {
+    if ( !t.complete ( status ) ) {
+      listener.getLogger ().println ( t.getName ()
+                                              + " was already completed by another executor" );
+      return false;
+    }
+    t.executor = run.getProject ().getNumber ();
+    t.node = run.getBuiltOnStr ();
+    t.logStart = run.taskLogStart;
+    t.logEnd = run.taskLogEnd;
+    if ( t.lastNode != null ) {
+      t.affinityHit = t.lastNode.equals ( t.node );
+    }
+    for ( DistributedRun other : t.getHolders () ) {
+      if ( other != run ) {
+        other.abandon ( t );
+      }
+    }
+    finished ( t );
+    return true;
+  }
+
+  private static long weight ( Task t ) {
+    return Math.max ( t.predictedDuration, 1 );
+  }
+
+  Task getNextTask ( int executor ) {
+    Ready r = ready;
+    if ( r == null ) {
+      return null;
+    }
+    Task t = pollRequeued ( executor );
+    if ( t != null ) {
+      return t;
+    }
+    Task[] o = r.tasks;
+    int i = r.cursor.getAndIncrement ();
+    while ( i < o.length ) {
+      t = o[i];
+      if ( t.claim () ) {
+        t.start ( executor, false );
+        return t;
+      }
+      i = r.cursor.getAndIncrement ();
+    }
+    return null;
+  }
+
+  /**
+   * Completes a task outside of any executor.
+   */
+  boolean complete ( Task t, Result status ) {
+    if ( !t.complete ( status ) ) {
+      return false;
+    }
+    finished ( t );
+    return true;
+  }
+
+  /**
+   * @return number of tasks that ran on the node they last ran on
+   */
+  public int getAffinityHits () {
+    int rt = 0;
+    for ( Task t : getTasks () ) {
+      if ( t.affinityHit != null && t.affinityHit ) {
+        rt++;
+      }
+    }
+    return rt;
+  }
+
+  /**
+   * @return number of tasks that had run on a known node before
+   */
+  public int getAffinityTasks () {
+    int rt = 0;
+    for ( Task t : getTasks () ) {
+      if ( t.affinityHit != null ) {
+        rt++;
+      }
+    }
+    return rt;
+  }
+
+  void reportAffinity () {
+    int tasks = getAffinityTasks ();
+    if ( tasks > 0 ) {
+      int hits = getAffinityHits ();
+      listener.getLogger ().println ( "Node affinity: " + hits + " of "
+                                              + tasks
+                                              + " tasks ran on the node they last ran on ("
+                                              + hits * 100 / tasks + "%)" );
+    }
   }
 
   public List<Task> getTasks () {
-    return ImmutableList.copyOf ( tasklist.values () );
+    SortedMap<String, Task> l = tasklist ();
+    synchronized ( l ) {
+      return ImmutableList.copyOf ( l.values () );
+    }
+  }
+
+  private Task[] snapshot () {
+    SortedMap<String, Task> l = tasklist ();
+    synchronized ( l ) {
+      return l.values ().toArray ( new Task[l.size ()] );
+    }
+  }
+
+  /**
+   * @return the tasks, read from the side file on first use for builds that
+   *         stored them there
+   */
+  private SortedMap<String, Task> tasklist () {
+    SortedMap<String, Task> l = tasklist;
+    if ( l == null ) {
+      synchronized ( this ) {
+        if ( tasklist == null ) {
+          tasklist = loadTasks ();
+        }
+        l = tasklist;
+      }
+    }
+    return l;
+  }
+
+  /**
+   * @return the duration as hours, minutes and seconds, or milliseconds when
+   *         under a second
+   */
+  static String durationString ( long duration ) {
+    StringBuilder sb = new StringBuilder ();
+    long diffInHours = TimeUnit.MILLISECONDS.toHours ( duration );
+    if ( diffInHours > 0 ) {
+      sb.append ( diffInHours ).append ( "h" );
+      duration -= TimeUnit.HOURS.toMillis ( diffInHours );
+    }
+    long diffInMinutes = TimeUnit.MILLISECONDS.toMinutes ( duration );
+    if ( diffInMinutes > 0 ) {
+      sb.append ( diffInMinutes ).append ( "m" );
+      duration -= TimeUnit.MINUTES.toMillis ( diffInMinutes );
+    }
+    long diffInSeconds = TimeUnit.MILLISECONDS.toSeconds ( duration );
+    if ( diffInSeconds > 0 ) {
+      sb.append ( diffInSeconds ).append ( "s" );
+    } else if ( sb.length () == 0 ) {
+      sb.append ( duration ).append ( "ms" );
+    }
+    return sb.toString ();
+  }
+
+  /**
+   * @return the parent's workspace snapshot for executors to unpack, null
+   *         when executors check out from the SCM
+   */
+  WorkspaceSnapshot getSnapshot () {
+    return snapshot;
+  }
+
+  void setSnapshot ( WorkspaceSnapshot snapshot ) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @return where executors sync their files to, null once the build is no
+   *         longer running
+   */
+  SyncReceiver getReceiver () {
+    return receiver;
+  }
+
+  void setReceiver ( SyncReceiver receiver ) {
+    this.receiver = receiver;
+  }
+
+  void onLoad ( DistributedBuild build ) {
+    this.build = build;
+  }
+
+  /**
+   * Writes the tasks to a side file in the build directory once the list is
+   * large enough, build.xml then only refers to the file.
+   */
+  void saveTasks ( File dir ) throws IOException {
+    if ( tasklist == null ) {
+      return;
+    }
+    if ( unreadable ) {
+      LOG.log ( Level.WARNING, "Not saving tasks over unreadable {0}",
+                new File ( dir, taskFile ) );
+      return;
+    }
+    int v = version;
+    if ( taskFile != null && v == saved
+         && new File ( dir, taskFile ).exists () ) {
+      return;
+    }
+    Task[] all = snapshot ();
+    if ( taskFile == null && all.length < SIDE_FILE_THRESHOLD ) {
+      return;
+    }
+    File f = new File ( dir, TASK_FILE );
+    File tmp = new File ( dir, TASK_FILE + ".tmp" );
+    DataOutputStream out = new DataOutputStream ( new BufferedOutputStream (
+            new GZIPOutputStream ( new FileOutputStream ( tmp ) ) ) );
+    try {
+      writeTasks ( out, all );
+    } finally {
+      out.close ();
+    }
+    // renaming over the old file replaces it in one step where the platform
+    // allows it, only where it does not is the old file removed first
+    if ( !tmp.renameTo ( f ) ) {
+      if ( f.exists () && !f.delete () ) {
+        throw new IOException ( "Failed to replace " + f );
+      }
+      if ( !tmp.renameTo ( f ) ) {
+        throw new IOException ( "Failed to rename " + tmp + " to " + f );
+      }
+    }
+    taskFile = TASK_FILE;
+    saved = v;
+  }
+
+  /**
+   * Leaves the tasks out of build.xml when they are kept in the side file.
+   */
+  public Object writeReplace () {
+    if ( taskFile == null ) {
+      return this;
+    }
+    TaskCoordinator rt = new TaskCoordinator ( build );
+    rt.tasklist = null;
+    rt.taskFile = taskFile;
+    return rt;
+  }
+
+  private SortedMap<String, Task> loadTasks () {
+    SortedMap<String, Task> rt = new TreeMap<String, Task> ();
+    if ( build == null || taskFile == null ) {
+      return rt;
+    }
+    File f = new File ( build.getRootDir (), taskFile );
+    try {
+      DataInputStream in = new DataInputStream ( new BufferedInputStream (
+              new GZIPInputStream ( new FileInputStream ( f ) ) ) );
+      try {
+        for ( Task t : readTasks ( in ) ) {
+          rt.put ( t.getName (), t );
+        }
+      } finally {
+        in.close ();
+      }
+    } catch ( IOException ex ) {
+      LOG.log ( Level.WARNING, "Failed to read tasks from " + f, ex );
+      unreadable = true;
+      rt.clear ();
+    }
+    return rt;
+  }
+
+  /**
+   * Writes the tasks column by column, strings go to a table up front and
+   * are referred to by index.
+   */
+  private static void writeTasks ( DataOutputStream out, Task[] tasks )
+          throws IOException {
+    StringTable st = new StringTable ();
+    for ( Task t : tasks ) {
+      st.add ( t.name );
+      for ( int i = 0; t.vars != null && i < t.vars.length; i++ ) {
+        st.add ( t.vars[i] );
+      }
+      st.add ( t.result.toString () );
+      st.add ( t.node );
+      for ( String d : t.getDependsOn () ) {
+        st.add ( d );
+      }
+    }
+    out.writeInt ( MAGIC2 );
+    out.writeInt ( tasks.length );
+    st.write ( out );
+    for ( Task t : tasks ) {
+      out.writeInt ( st.id ( t.name ) );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( t.vars != null ? t.vars.length : 0 );
+      for ( int i = 0; t.vars != null && i < t.vars.length; i++ ) {
+        out.writeInt ( st.id ( t.vars[i] ) );
+      }
+    }
+    for ( Task t : tasks ) {
+      out.writeByte ( ( t.run ? 1 : 0 ) | ( t.running ? 2 : 0 )
+                      | ( t.affinityHit != null ? 4 : 0 )
+                      | ( t.affinityHit != null && t.affinityHit ? 8 : 0 )
+                      | ( t.synthetic ? 16 : 0 ) );
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.startTime );
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.finishTime );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( t.executor );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( st.id ( t.result.toString () ) );
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.lastDuration );
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.predictedDuration );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( t.buildnumber );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( t.attempts );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( st.id ( t.node ) );
+    }
+    for ( Task t : tasks ) {
+      out.writeInt ( t.dependsOn != null ? t.dependsOn.size () : -1 );
+      for ( String d : t.getDependsOn () ) {
+        out.writeInt ( st.id ( d ) );
+      }
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.logStart );
+    }
+    for ( Task t : tasks ) {
+      out.writeLong ( t.logEnd );
+    }
+  }
+
+  private Task[] readTasks ( DataInputStream in ) throws IOException {
+    int magic = in.readInt ();
+    if ( magic != MAGIC && magic != MAGIC2 ) {
+      throw new IOException ( "Not a task file" );
+    }
+    int n = in.readInt ();
+    String[] st = StringTable.read ( in );
+    Task[] rt = new Task[n];
+    for ( int i = 0; i < n; i++ ) {
+      rt[i] = new Task ( st[in.readInt ()], null );
+    }
+    for ( Task t : rt ) {
+      int count = in.readInt ();
+      if ( count > 0 ) {
+        t.vars = new String[count];
+        for ( int i = 0; i < count; i++ ) {
+          t.vars[i] = STRINGS.intern ( st[in.readInt ()] );
+        }
+      }
+    }
+    for ( Task t : rt ) {
+      int flags = in.readByte ();
+      t.run = ( flags & 1 ) != 0;
+      t.running = ( flags & 2 ) != 0;
+      t.affinityHit = ( flags & 4 ) != 0 ? ( flags & 8 ) != 0 : null;
+      t.synthetic = ( flags & 16 ) != 0;
+    }
+    for ( Task t : rt ) {
+      t.startTime = in.readLong ();
+    }
+    for ( Task t : rt ) {
+      t.finishTime = in.readLong ();
+    }
+    for ( Task t : rt ) {
+      t.executor = in.readInt ();
+    }
+    for ( Task t : rt ) {
+      t.result = Result.fromString ( st[in.readInt ()] );
+    }
+    for ( Task t : rt ) {
+      t.lastDuration = in.readLong ();
+    }
+    for ( Task t : rt ) {
+      t.predictedDuration = in.readLong ();
+    }
+    for ( Task t : rt ) {
+      t.buildnumber = in.readInt ();
+    }
+    for ( Task t : rt ) {
+      t.attempts = in.readInt ();
+    }
+    for ( Task t : rt ) {
+      int node = in.readInt ();
+      t.node = node >= 0 ? STRINGS.intern ( st[node] ) : null;
+    }
+    for ( Task t : rt ) {
+      int count = in.readInt ();
+      if ( count >= 0 ) {
+        t.dependsOn = new ArrayList<String> ( count );
+        for ( int i = 0; i < count; i++ ) {
+          t.dependsOn.add ( st[in.readInt ()] );
+        }
+      }
+    }
+    if ( magic == MAGIC2 ) {
+      for ( Task t : rt ) {
+        t.logStart = in.readLong ();
+      }
+      for ( Task t : rt ) {
+        t.logEnd = in.readLong ();
+      }
+    }
+    return rt;
   }
 
   public Object readResolve () {
     if ( tasks != null ) {
-      tasklist = new TreeMap<String, Task> ();
+      SortedMap<String, Task> l = new TreeMap<String, Task> ();
       for ( Task t : tasks ) {
-        tasklist.put ( t.getName (), t );
+        l.put ( t.getName (), t );
       }
+      tasklist = l;
       tasks.clear ();
       tasks = null;
+    } else if ( tasklist == null && taskFile == null ) {
+      tasklist = new TreeMap<String, Task> ();
     }
     return this;
   }
 
   public Task getTask ( String name ) {
-    return tasklist.get ( name );
+    SortedMap<String, Task> l = tasklist ();
+    synchronized ( l ) {
+      return l.get ( name );
+    }
   }
 
   void setListener ( BuildListener listener ) {
@@ -133,43 +1530,173 @@ public class TaskCoordinator extends InvisibleAction {
   }
 
   public void cleanUp () {
-    for ( Task t : tasklist.values () ) {
-      t.running = false;
+    for ( Task t : getTasks () ) {
+      if ( t.running ) {
+        t.running = false;
+        changed ( t );
+      }
     }
   }
 
+  /**
+   * @return the environment as key value pairs sorted by key, strings shared
+   *         between tasks, null when empty
+   */
+  private static String[] pack ( Map<String, String> env ) {
+    if ( env == null || env.isEmpty () ) {
+      return null;
+    }
+    SortedMap<String, String> sorted = env instanceof SortedMap
+                                       ? (SortedMap<String, String>) env
+                                       : new TreeMap<String, String> ( env );
+    String[] rt = new String[sorted.size () * 2];
+    int i = 0;
+    for ( Map.Entry<String, String> e : sorted.entrySet () ) {
+      rt[i++] = STRINGS.intern ( e.getKey () );
+      rt[i++] = STRINGS.intern ( e.getValue () );
+    }
+    return rt;
+  }
+
+  /**
+   * Numbers the distinct strings written to a task file.
+   */
+  private static final class StringTable {
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer> ();
+    private final List<String> strings = new ArrayList<String> ();
+
+    void add ( String s ) {
+      if ( s != null && !ids.containsKey ( s ) ) {
+        ids.put ( s, strings.size () );
+        strings.add ( s );
+      }
+    }
+
+    int id ( String s ) {
+      return s != null ? ids.get ( s ) : -1;
+    }
+
+    void write ( DataOutputStream out ) throws IOException {
+      out.writeInt ( strings.size () );
+      for ( String s : strings ) {
+        byte[] b = s.getBytes ( "UTF-8" );
+        out.writeInt ( b.length );
+        out.write ( b );
+      }
+    }
+
+    static String[] read ( DataInputStream in ) throws IOException {
+      String[] rt = new String[in.readInt ()];
+      for ( int i = 0; i < rt.length; i++ ) {
+        byte[] b = new byte[in.readInt ()];
+        in.readFully ( b );
+        rt[i] = new String ( b, "UTF-8" );
+      }
+      return rt;
+    }
+  }
+
+  /**
+   * Tasks ready to run sorted by critical path, with the suffix sums of their
+   * weights and the cursor handing them out.
+   */
+  private static final class Ready {
+
+    private final Task[] tasks;
+    private final long[] remaining;
+    private final AtomicInteger cursor = new AtomicInteger ();
+
+    Ready ( Task[] tasks ) {
+      this.tasks = tasks;
+      remaining = new long[tasks.length + 1];
+      for ( int i = tasks.length - 1; i >= 0; i-- ) {
+        remaining[i] = remaining[i + 1] + weight ( tasks[i] );
+      }
+    }
+  }
+
+  private static final class NodeQueue {
+
+    private final Task[] tasks;
+    private final AtomicInteger cursor = new AtomicInteger ();
+
+    NodeQueue ( Task[] tasks ) {
+      this.tasks = tasks;
+    }
+
+    Task next () {
+      int i = cursor.getAndIncrement ();
+      return i < tasks.length ? tasks[i] : null;
+    }
+  }
+
+  /**
+   * A task of the build. The representation is kept compact as builds with
+   * large task lists retain many of them: primitive fields, times as epoch
+   * milliseconds and the environment as an array of interned key value
+   * pairs. The started, finished and env fields are only read from builds
+   * recorded before and converted on load.
+   */
   public class Task implements Comparable<Task> {
 
     private final String name;
-    private final SortedMap<String, String> env = new TreeMap<String, String> ();
+    private String[] vars;
+    private SortedMap<String, String> env;
     private Boolean run = false;
-    private Boolean running = false;
+    private boolean running;
+    private long startTime;
+    private long finishTime;
     private Date started;
     private Date finished;
-    private Integer executor;
+    private int executor = -1;
     private Result result = NOT_BUILT;
-    private Long lastDuration;
-    private Integer buildnumber;
+    private long lastDuration;
+    private long predictedDuration;
+    private int buildnumber;
+    private int attempts;
+    private String node;
+    private Boolean affinityHit;
+    private long logStart;
+    private long logEnd;
+    private transient String lastNode;
+    private List<String> dependsOn;
+    private transient List<Task> dependents;
+    transient volatile int pending;
+    private transient long criticalPath;
+    private transient boolean queued;
+    private transient boolean settled;
+    private transient boolean batched;
+    private boolean synthetic;
+    transient volatile int copies;
+    private transient volatile DistributedRun[] holders;
+    private transient volatile int version;
 
-    @SuppressWarnings ( "unchecked" )
-    public Task ( JSONObject data ) {
-      name = data.getString ( "name" );
-      for ( Object v : data.getJSONObject ( "env" ).entrySet () ) {
-        env.put ( ( (Map.Entry<String, String>) v ).getKey (),
-                  ( (Map.Entry<String, String>) v ).getValue () );
-      }
+    Task ( String name, Map<String, String> env ) {
+      this.name = name;
+      this.vars = pack ( env );
     }
 
+    Task ( String name, Map<String, String> env, List<String> dependsOn ) {
+      this ( name, env );
+      this.dependsOn = dependsOn;
+    }
+
+    /**
+     * Longest critical path first, then longest predicted duration, ties
+     * broken by name so the order is total and stable between builds.
+     */
     @Override
     public int compareTo ( Task o ) {
-      if ( o == null || lastDuration == null || o.lastDuration == null ) {
-        return 0;
-      } else if ( lastDuration > o.lastDuration ) {
+      if ( criticalPath != o.criticalPath ) {
+        return criticalPath > o.criticalPath ? -1 : 1;
+      }
+      if ( predictedDuration > o.predictedDuration ) {
         return -1;
-      } else if ( lastDuration < o.lastDuration ) {
+      } else if ( predictedDuration < o.predictedDuration ) {
         return 1;
       } else {
-        return 0;
+        return name.compareTo ( o.name );
       }
     }
 
@@ -178,15 +1705,15 @@ public class TaskCoordinator extends InvisibleAction {
     }
 
     public Integer getExecutor () {
-      return executor;
+      return executor >= 0 ? executor : null;
     }
 
     public Date getFinished () {
-      return finished;
+      return finishTime != 0 ? new Date ( finishTime ) : null;
     }
 
     public Date getStarted () {
-      return started;
+      return startTime != 0 ? new Date ( startTime ) : null;
     }
 
     public Boolean hasRun () {
@@ -202,112 +1729,246 @@ public class TaskCoordinator extends InvisibleAction {
     }
 
     public Integer getBuildnumber () {
-      return buildnumber;
+      return buildnumber > 0 ? buildnumber : null;
+    }
+
+    /**
+     * @return name of the node the task ran on, empty for the master
+     */
+    public String getNode () {
+      return node;
+    }
+
+    public Boolean getAffinityHit () {
+      return affinityHit;
+    }
+
+    /**
+     * @return offset in the executor's log where the task's output starts
+     */
+    public long getLogStart () {
+      return logStart;
+    }
+
+    /**
+     * @return offset in the executor's log where the task's output ends
+     */
+    public long getLogEnd () {
+      return logEnd;
+    }
+
+    /**
+     * @return true if the task's output is known to be in its executor's log
+     */
+    public boolean hasLog () {
+      return logEnd > logStart;
+    }
+
+    /**
+     * @return names of the tasks that must complete before this one starts
+     */
+    public List<String> getDependsOn () {
+      return dependsOn != null ? dependsOn : Collections.<String>emptyList ();
+    }
+
+    boolean isReady () {
+      return pending == 0;
+    }
+
+    /**
+     * @return the predicted duration, 0 when nothing is known
+     */
+    public long getPredictedDuration () {
+      return predictedDuration;
+    }
+
+    /**
+     * Sets the prediction of a task built without history, for synthetic
+     * task lists.
+     */
+    void setPredictedDuration ( long predictedDuration ) {
+      this.predictedDuration = predictedDuration;
+    }
+
+    boolean hasSample () {
+      return run && !running && result != NOT_BUILT && result != ABORTED
+                     && startTime != 0 && finishTime != 0 && !synthetic;
+    }
+
+    /**
+     * @return true if the task ran in a batch that did not report its time,
+     *         its timing is a share of the batch
+     */
+    public boolean isSynthetic () {
+      return synthetic;
     }
 
     public Long getDuration () {
       Long duration = null;
 
-      if ( finished != null && started != null ) {
-        duration = finished.getTime () - started.getTime ();
-      } else if ( started != null ) {
-        duration = new Date ().getTime () - started.getTime ();
+      if ( finishTime != 0 && startTime != 0 ) {
+        duration = finishTime - startTime;
+      } else if ( startTime != 0 ) {
+        duration = System.currentTimeMillis () - startTime;
       }
 
       return duration;
     }
 
     public String getDurationstring () {
-      StringBuilder sb = new StringBuilder ();
       Long duration = getDuration ();
-      if ( duration != null ) {
-        long diffInHours = TimeUnit.MILLISECONDS.toHours ( duration );
-        if ( diffInHours > 0 ) {
-          sb.append ( diffInHours ).append ( "h" );
-          duration -= TimeUnit.HOURS.toMillis ( diffInHours );
-        }
-        long diffInMinutes = TimeUnit.MILLISECONDS.toMinutes ( duration );
-        if ( diffInMinutes > 0 ) {
-          sb.append ( diffInMinutes ).append ( "m" );
-          duration -= TimeUnit.MINUTES.toMillis ( diffInMinutes );
-        }
-        long diffInSeconds = TimeUnit.MILLISECONDS.toSeconds ( duration );
-        if ( diffInSeconds > 0 ) {
-          sb.append ( diffInSeconds ).append ( "s" );
-          duration -= TimeUnit.SECONDS.toMillis ( diffInSeconds );
-        } else if ( sb.length () == 0 ) {
-          sb.append ( duration ).append ( "ms" );
-        }
-      }
-      return sb.toString ();
+      return duration != null ? durationString ( duration ) : "";
+    }
+
+    /**
+     * @return tasks waiting on this one
+     */
+    List<Task> getDependents () {
+      return dependents != null ? dependents : Collections.<Task>emptyList ();
     }
 
     public Long getDurationDiff () {
       Long duration = getDuration ();
-      if ( lastDuration == null || duration == null ) {
+      if ( lastDuration == 0 || duration == null ) {
         return null;
       }
-      return getDuration () - lastDuration;
+      return duration - lastDuration;
     }
 
     public String getDurationDiffString () {
-      StringBuilder sb = new StringBuilder ();
       Long duration = getDurationDiff ();
-      if ( duration != null ) {
-        if ( duration < 0 ) {
-          duration *= -1;
-          sb.append ( "-" );
-        } else {
-          sb.append ( "+" );
-        }
-        long diffInHours = TimeUnit.MILLISECONDS.toHours ( duration );
-        if ( diffInHours > 0 ) {
-          sb.append ( diffInHours ).append ( "h" );
-          duration -= TimeUnit.HOURS.toMillis ( diffInHours );
-        }
-        long diffInMinutes = TimeUnit.MILLISECONDS.toMinutes ( duration );
-        if ( diffInMinutes > 0 ) {
-          sb.append ( diffInMinutes ).append ( "m" );
-          duration -= TimeUnit.MINUTES.toMillis ( diffInMinutes );
-        }
-        long diffInSeconds = TimeUnit.MILLISECONDS.toSeconds ( duration );
-        if ( diffInSeconds > 0 ) {
-          sb.append ( diffInSeconds ).append ( "s" );
-          duration -= TimeUnit.SECONDS.toMillis ( diffInSeconds );
-        } else if ( sb.length () <= 1 ) {
-          sb.append ( duration ).append ( "ms" );
-        }
+      if ( duration == null ) {
+        return "";
       }
-      return sb.toString ();
+      return ( duration < 0 ? "-" : "+" ) + durationString ( Math.abs (
+              duration ) );
     }
 
     public Map<String, String> getEnv () {
-      return env;
+      SortedMap<String, String> rt = new TreeMap<String, String> ();
+      for ( int i = 0; vars != null && i < vars.length; i += 2 ) {
+        rt.put ( vars[i], vars[i + 1] );
+      }
+      return Collections.unmodifiableSortedMap ( rt );
+    }
+
+    /**
+     * Claims the task for an executor, it can be reached from more than one
+     * queue so only the first claim wins.
+     */
+    boolean claim () {
+      return isReady () && reserve ();
+    }
+
+    /**
+     * Claims the task whether or not its prerequisites are complete.
+     */
+    boolean reserve () {
+      return COPIES.compareAndSet ( this, 0, 1 );
+    }
+
+    /**
+     * Claims a second copy of a task that is running once.
+     */
+    boolean duplicate () {
+      return COPIES.compareAndSet ( this, 1, 2 );
+    }
+
+    boolean isClaimed () {
+      return copies > 0;
+    }
+
+    void start ( int executor, boolean batched ) {
+      this.executor = executor;
+      this.batched = batched;
+      synthetic = false;
+      attempts++;
+      startTime = System.currentTimeMillis ();
+      running = true;
+      changed ( this );
+    }
+
+    DistributedRun[] getHolders () {
+      DistributedRun[] h = holders;
+      return h != null ? h : NO_HOLDERS;
     }
 
-    public void complete ( Result status ) {
+    synchronized void addHolder ( DistributedRun holder ) {
+      DistributedRun[] h = getHolders ();
+      DistributedRun[] n = Arrays.copyOf ( h, h.length + 1 );
+      n[h.length] = holder;
+      holders = n;
+    }
+
+    /**
+     * Drops the copy run by the given executor.
+     *
+     * @return true if that was the last copy and the task is no longer
+     *         running
+     */
+    synchronized boolean drop ( DistributedRun holder ) {
+      if ( run ) {
+        return false;
+      }
+      DistributedRun[] h = getHolders ();
+      int i = Arrays.asList ( h ).indexOf ( holder );
+      if ( i < 0 ) {
+        return false;
+      }
+      DistributedRun[] n = new DistributedRun[h.length - 1];
+      System.arraycopy ( h, 0, n, 0, i );
+      System.arraycopy ( h, i + 1, n, i, n.length - i );
+      holders = n;
+      if ( COPIES.decrementAndGet ( this ) > 0 ) {
+        return false;
+      }
+      running = false;
+      changed ( this );
+      return true;
+    }
+
+    public int getAttempts () {
+      return attempts;
+    }
+
+    /**
+     * @return false if the task was already completed by another copy
+     */
+    public synchronized boolean complete ( Result status ) {
+      if ( run ) {
+        return false;
+      }
       listener.getLogger ().println ( name + " completed" );
-      finished = new Date ();
+      finishTime = System.currentTimeMillis ();
       result = status;
       running = false;
       run = true;
+      changed ( this );
+      return true;
     }
 
     public Object readResolve () {
       if ( run == null ) {
         run = true;
       }
-      if ( running == null || running ) {
-        running = false;
+      running = false;
+      if ( started != null ) {
+        startTime = started.getTime ();
+        started = null;
+      }
+      if ( finished != null ) {
+        finishTime = finished.getTime ();
+        finished = null;
       }
-      if ( executor == null ) {
-        executor = 0;
+      if ( env != null ) {
+        vars = pack ( env );
+        env = null;
       }
-      if ( started == null ) {
-        started = new Date ();
+      for ( int i = 0; vars != null && i < vars.length; i++ ) {
+        vars[i] = STRINGS.intern ( vars[i] );
       }
-      if ( finished == null ) {
-        finished = new Date ();
+      if ( node != null ) {
+        node = STRINGS.intern ( node );
       }
       return this;
     }
@@ -0,0 +1,514 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import static hudson.model.Result.ABORTED;
+import static hudson.model.Result.FAILURE;
+import static hudson.model.Result.NOT_BUILT;
+
+/**
+ * Per project index of how each task went in earlier builds, so history and
+ * predictions do not have to load every build from disk.
+ * <p>
+ * The index is an append-only file with one record per completed build and
+ * one per deleted build. It is read once and kept in memory, a missing or
+ * unreadable file is rebuilt from the builds themselves. The file is
+ * compacted when it is read once most of its records are for deleted or
+ * replaced builds.
+ *
+ * @author David van Laatum
+ */
+public class TaskHistory {
+
+  private static final Logger LOG
+          = Logger.getLogger ( TaskHistory.class.getName () );
+  public static final String FILE = "taskhistory.dat";
+  private static final int MAGIC = 0x44544831;
+  private static final byte BUILD = 1;
+  private static final byte DELETED = 2;
+
+  private final File file;
+  private final NavigableMap<Integer, Build> builds
+          = new TreeMap<Integer, Build> ();
+  private final Map<String, List<Entry>> tasks
+          = new HashMap<String, List<Entry>> ();
+  private boolean loaded;
+
+  public TaskHistory ( File file ) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the index file.
+   *
+   * @return false if there is no usable file and the index has to be rebuilt
+   */
+  public synchronized boolean load () {
+    loaded = true;
+    if ( !file.exists () ) {
+      return false;
+    }
+    int dead = 0;
+    try {
+      DataInputStream in = new DataInputStream ( new BufferedInputStream (
+              new FileInputStream ( file ) ) );
+      try {
+        if ( in.readInt () != MAGIC ) {
+          LOG.log ( Level.WARNING, "{0} is not a task history", file );
+          return false;
+        }
+        int records = 0;
+        while ( true ) {
+          int type = in.read ();
+          if ( type == -1 ) {
+            break;
+          } else if ( type == BUILD ) {
+            readBuild ( in );
+          } else if ( type == DELETED ) {
+            remove ( in.readInt () );
+          } else {
+            throw new IOException ( "Unknown record type " + type );
+          }
+          records++;
+        }
+        // records for builds since deleted or recorded again
+        dead = records - builds.size ();
+      } finally {
+        in.close ();
+      }
+    } catch ( EOFException ex ) {
+      LOG.log ( Level.WARNING, "Task history {0} ends in a partial record,"
+                               + " rewriting it", file );
+      try {
+        rewrite ();
+      } catch ( IOException ex2 ) {
+        LOG.log ( Level.WARNING, "Failed to rewrite " + file, ex2 );
+      }
+    } catch ( IOException ex ) {
+      LOG.log ( Level.WARNING, "Failed to read task history " + file, ex );
+      clear ();
+      return false;
+    }
+    if ( dead > builds.size () ) {
+      try {
+        rewrite ();
+      } catch ( IOException ex ) {
+        LOG.log ( Level.WARNING, "Failed to compact " + file, ex );
+      }
+    }
+    return true;
+  }
+
+  public synchronized boolean isLoaded () {
+    return loaded;
+  }
+
+  /**
+   * Replaces the index with the given builds, oldest first.
+   */
+  public synchronized void rebuild ( Collection<Build> all ) throws
+          IOException {
+    clear ();
+    loaded = true;
+    for ( Build b : all ) {
+      add ( b );
+    }
+    rewrite ();
+  }
+
+  /**
+   * Adds a completed build, replacing an earlier record for the same number.
+   */
+  public synchronized void record ( Build b ) throws IOException {
+    ensureLoaded ();
+    add ( b );
+    append ( BUILD, b );
+  }
+
+  public synchronized void delete ( int number ) throws IOException {
+    ensureLoaded ();
+    if ( builds.containsKey ( number ) ) {
+      remove ( number );
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+      DataOutputStream out = new DataOutputStream ( bytes );
+      out.writeByte ( DELETED );
+      out.writeInt ( number );
+      out.close ();
+      appendBytes ( bytes.toByteArray () );
+    }
+  }
+
+  /**
+   * @return the numbers of up to count builds before the given one whose
+   *         timings are worth using, newest first
+   */
+  public synchronized List<Integer> getBuilds ( int before, int count ) {
+    ensureLoaded ();
+    List<Integer> rt = new ArrayList<Integer> ( count );
+    for ( Build b : builds.headMap ( before, false ).descendingMap ()
+            .values () ) {
+      if ( rt.size () >= count ) {
+        break;
+      }
+      if ( b.result != NOT_BUILT && b.result != ABORTED
+                   && b.result != FAILURE ) {
+        rt.add ( b.number );
+      }
+    }
+    return rt;
+  }
+
+  /**
+   * @return the tasks recorded for a build, empty if it is not known
+   */
+  public synchronized List<Entry> getEntries ( int build ) {
+    ensureLoaded ();
+    Build b = builds.get ( build );
+    return b != null ? b.entries : Collections.<Entry>emptyList ();
+  }
+
+  /**
+   * @return every recorded run of the task, newest first
+   */
+  public synchronized List<Entry> getHistory ( String name ) {
+    ensureLoaded ();
+    List<Entry> l = tasks.get ( name );
+    if ( l == null ) {
+      return Collections.emptyList ();
+    }
+    List<Entry> rt = new ArrayList<Entry> ( l );
+    Collections.reverse ( rt );
+    return rt;
+  }
+
+  public synchronized Entry getEntry ( String name, int build ) {
+    ensureLoaded ();
+    List<Entry> l = tasks.get ( name );
+    for ( int i = l != null ? l.size () - 1 : -1; i >= 0; i-- ) {
+      if ( l.get ( i ).build == build ) {
+        return l.get ( i );
+      } else if ( l.get ( i ).build < build ) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  private void ensureLoaded () {
+    if ( !loaded ) {
+      load ();
+    }
+  }
+
+  private void clear () {
+    builds.clear ();
+    tasks.clear ();
+  }
+
+  private void add ( Build b ) {
+    remove ( b.number );
+    builds.put ( b.number, b );
+    for ( Entry e : b.entries ) {
+      List<Entry> l = tasks.get ( e.name );
+      if ( l == null ) {
+        l = new ArrayList<Entry> ( 4 );
+        tasks.put ( e.name, l );
+      }
+      int i = l.size ();
+      while ( i > 0 && l.get ( i - 1 ).build > b.number ) {
+        i--;
+      }
+      l.add ( i, e );
+    }
+  }
+
+  private void remove ( int number ) {
+    Build b = builds.remove ( number );
+    if ( b != null ) {
+      for ( Entry e : b.entries ) {
+        List<Entry> l = tasks.get ( e.name );
+        if ( l != null ) {
+          l.remove ( e );
+          if ( l.isEmpty () ) {
+            tasks.remove ( e.name );
+          }
+        }
+      }
+    }
+  }
+
+  private void readBuild ( DataInputStream in ) throws IOException {
+    int number = in.readInt ();
+    Result result = Result.fromString ( in.readUTF () );
+    int count = in.readInt ();
+    List<Entry> entries = new ArrayList<Entry> ( count );
+    for ( int i = 0; i < count; i++ ) {
+      String name = TaskCoordinator.STRINGS.intern ( in.readUTF () );
+      long duration = in.readLong ();
+      Result r = Result.fromString ( in.readUTF () );
+      String node = in.readBoolean () ? TaskCoordinator.STRINGS.intern ( in
+              .readUTF () ) : null;
+      boolean sample = in.readBoolean ();
+      entries.add ( new Entry ( name, number, duration, r, node, sample ) );
+    }
+    add ( new Build ( number, result, entries ) );
+  }
+
+  private static void writeBuild ( DataOutputStream out, Build b ) throws
+          IOException {
+    out.writeInt ( b.number );
+    out.writeUTF ( b.result.toString () );
+    out.writeInt ( b.entries.size () );
+    for ( Entry e : b.entries ) {
+      out.writeUTF ( e.name );
+      out.writeLong ( e.duration );
+      out.writeUTF ( e.result.toString () );
+      out.writeBoolean ( e.node != null );
+      if ( e.node != null ) {
+        out.writeUTF ( e.node );
+      }
+      out.writeBoolean ( e.sample );
+    }
+  }
+
+  /**
+   * Appends a record in a single write so a crash leaves at most one
+   * partial record at the end.
+   */
+  private void append ( byte type, Build b ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    DataOutputStream out = new DataOutputStream ( bytes );
+    out.writeByte ( type );
+    writeBuild ( out, b );
+    out.close ();
+    appendBytes ( bytes.toByteArray () );
+  }
+
+  private void appendBytes ( byte[] bytes ) throws IOException {
+    if ( !file.exists () ) {
+      rewrite ();
+      return;
+    }
+    FileOutputStream out = new FileOutputStream ( file, true );
+    try {
+      out.write ( bytes );
+    } finally {
+      out.close ();
+    }
+  }
+
+  private void rewrite () throws IOException {
+    File tmp = new File ( file.getPath () + ".tmp" );
+    DataOutputStream out = new DataOutputStream ( new FileOutputStream ( tmp ) );
+    try {
+      out.writeInt ( MAGIC );
+      for ( Build b : builds.values () ) {
+        out.writeByte ( BUILD );
+        writeBuild ( out, b );
+      }
+    } finally {
+      out.close ();
+    }
+    // renaming over the old file replaces it in one step where the platform
+    // allows it, only where it does not is the old file removed first
+    if ( !tmp.renameTo ( file ) ) {
+      if ( file.exists () && !file.delete () ) {
+        throw new IOException ( "Failed to replace " + file );
+      }
+      if ( !tmp.renameTo ( file ) ) {
+        throw new IOException ( "Failed to rename " + tmp + " to " + file );
+      }
+    }
+  }
+
+  /**
+   * @return the record for a finished build
+   */
+  static Build of ( DistributedBuild build ) {
+    TaskCoordinator co = build.getCoordinator ();
+    List<Entry> entries = new ArrayList<Entry> ();
+    if ( co != null ) {
+      for ( TaskCoordinator.Task t : co.getTasks () ) {
+        if ( t.hasRun () && !t.isRunning () ) {
+          entries.add ( Entry.of ( t, co.nodeOf ( t ) ) );
+        }
+      }
+    }
+    Result result = build.getResult ();
+    return new Build ( build.getNumber (), result != null ? result
+                                           : NOT_BUILT, entries );
+  }
+
+  public static class Build {
+
+    private final int number;
+    private final Result result;
+    private final List<Entry> entries;
+
+    public Build ( int number, Result result, List<Entry> entries ) {
+      this.number = number;
+      this.result = result;
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * One run of a task.
+   */
+  public static class Entry {
+
+    private final String name;
+    private final int build;
+    private final long duration;
+    private final Result result;
+    private final String node;
+    private final boolean sample;
+    private final boolean running;
+    private Entry previous;
+
+    public Entry ( String name, int build, long duration, Result result,
+                   String node, boolean sample ) {
+      this ( name, build, duration, result, node, sample, false );
+    }
+
+    private Entry ( String name, int build, long duration, Result result,
+                    String node, boolean sample, boolean running ) {
+      this.name = name;
+      this.build = build;
+      this.duration = duration;
+      this.result = result;
+      this.node = node;
+      this.sample = sample;
+      this.running = running;
+    }
+
+    static Entry of ( TaskCoordinator.Task t, String node ) {
+      Long d = t.getDuration ();
+      Integer b = t.getBuildnumber ();
+      return new Entry ( t.getName (), b != null ? b : 0, d != null ? d : -1,
+                         t.getResult (), node, t.hasSample (), t.isRunning () );
+    }
+
+    public String getName () {
+      return name;
+    }
+
+    public int getBuildnumber () {
+      return build;
+    }
+
+    /**
+     * @return the duration in milliseconds, null if it is not known
+     */
+    public Long getDuration () {
+      return duration >= 0 ? duration : null;
+    }
+
+    public String getDurationstring () {
+      return duration >= 0 ? TaskCoordinator.durationString ( duration ) : "";
+    }
+
+    /**
+     * @return the change from the run listed after this one
+     */
+    public Long getDurationDiff () {
+      if ( duration < 0 || previous == null || previous.duration < 0 ) {
+        return null;
+      }
+      return duration - previous.duration;
+    }
+
+    public String getDurationDiffString () {
+      Long diff = getDurationDiff ();
+      if ( diff == null ) {
+        return "";
+      }
+      return ( diff < 0 ? "-" : "+" ) + TaskCoordinator.durationString ( Math
+              .abs ( diff ) );
+    }
+
+    public Result getResult () {
+      return result;
+    }
+
+    /**
+     * @return name of the node the task ran on, empty for the master
+     */
+    public String getNode () {
+      return node;
+    }
+
+    /**
+     * @return true if the duration is usable for predictions
+     */
+    public boolean isSample () {
+      return sample;
+    }
+
+    public boolean isRunning () {
+      return running;
+    }
+
+    /**
+     * @return a copy that reports its duration change against the given run
+     */
+    Entry comparedTo ( Entry previous ) {
+      Entry rt = new Entry ( name, build, duration, result, node, sample,
+                             running );
+      rt.previous = previous;
+      return rt;
+    }
+  }
+
+  /**
+   * Keeps the index of each project up to date as builds finish or are
+   * deleted.
+   */
+  @Extension
+  public static class Listener extends RunListener<DistributedBuild> {
+
+    public Listener () {
+      super ( DistributedBuild.class );
+    }
+
+    @Override
+    public void onCompleted ( DistributedBuild r, TaskListener listener ) {
+      try {
+        r.getProject ().getTaskHistory ().record ( of ( r ) );
+      } catch ( IOException ex ) {
+        LOG.log ( Level.WARNING, "Failed to record task history of " + r, ex );
+      }
+    }
+
+    @Override
+    public void onDeleted ( DistributedBuild r ) {
+      try {
+        r.getProject ().getTaskHistory ().delete ( r.getNumber () );
+      } catch ( IOException ex ) {
+        LOG.log ( Level.WARNING, "Failed to remove " + r
+                                 + " from task history", ex );
+      }
+    }
+  }
+}
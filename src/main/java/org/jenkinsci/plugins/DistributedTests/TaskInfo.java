@@ -23,12 +23,20 @@
  */
 package org.jenkinsci.plugins.DistributedTests;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import hudson.console.PlainTextConsoleOutputStream;
 import hudson.model.Actionable;
 import hudson.model.Computer;
-import hudson.model.Node;
 import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  *
@@ -78,34 +86,121 @@ public class TaskInfo extends Actionable {
     return task;
   }
 
-  public List<TaskCoordinator.Task> getHistory () {
-    List<TaskCoordinator.Task> rt = new ArrayList<TaskCoordinator.Task> ();
-    rt.add ( task );
-    DistributedBuild t = build.getPreviousBuild ();
-    while ( t != null ) {
-      final TaskInfo t2 = t.getTask ( task.getName () );
-      if ( t2 != null ) {
-        rt.add ( t2.getTask () );
+  /**
+   * @return this run of the task followed by the runs in earlier builds,
+   *         newest first
+   */
+  public List<TaskHistory.Entry> getHistory () {
+    List<TaskHistory.Entry> runs = new ArrayList<TaskHistory.Entry> ();
+    TaskCoordinator co = build.getCoordinator ();
+    runs.add ( TaskHistory.Entry.of ( task, co != null ? co.nodeOf ( task )
+                                      : task.getNode () ) );
+    for ( TaskHistory.Entry e : project.getTaskHistory ().getHistory ( task
+            .getName () ) ) {
+      if ( e.getBuildnumber () < build.getNumber () ) {
+        runs.add ( e );
       }
-      t = t.getPreviousBuild ();
+    }
+    List<TaskHistory.Entry> rt = new ArrayList<TaskHistory.Entry> ( runs
+            .size () );
+    for ( int i = 0; i < runs.size (); i++ ) {
+      rt.add ( runs.get ( i ).comparedTo ( i + 1 < runs.size () ? runs.get (
+                                           i + 1 ) : null ) );
     }
     return rt;
   }
 
+  /**
+   * @return the executor run holding the task's output, null if there is none
+   */
   @CheckForNull
-  public Computer getNodeForTask ( TaskCoordinator.Task task ) {
-    Computer rt = null;
-    DistributedBuild b = project.getBuildByNumber ( task.getBuildnumber () );
-    if ( b != null ) {
-      DistributedRun run = b.getRuns ().get ( task.getExecutor () );
-      if ( run != null ) {
-        Node builtOn = run.getBuiltOn ();
-        if ( builtOn != null ) {
-          rt = builtOn.toComputer ();
+  public DistributedRun getRun () {
+    Integer executor = task.getExecutor ();
+    return executor != null ? build.getRun ( executor ) : null;
+  }
+
+  /**
+   * @return true if the task's output can be shown on its own
+   */
+  public boolean hasLog () {
+    DistributedRun run = getRun ();
+    return run != null && ( task.hasLog () || run.getTaskLogStart ( task )
+                                                       >= 0 );
+  }
+
+  /**
+   * Sends the task's part of its executor's log, read straight from its
+   * recorded offsets. A running task's output is sent up to the end of the
+   * log so far. The start parameter skips output already fetched, the
+   * X-Text-Size header gives where to continue from and X-More-Data is set
+   * while the task is still running.
+   */
+  public void doLog ( StaplerRequest req, StaplerResponse rsp ) throws
+          IOException {
+    DistributedRun run = getRun ();
+    if ( run == null ) {
+      rsp.sendError ( HttpServletResponse.SC_NOT_FOUND );
+      return;
+    }
+    File log = run.getLogFile ();
+    long start = task.getLogStart ();
+    long end = task.getLogEnd ();
+    boolean more = false;
+    long running = run.getTaskLogStart ( task );
+    if ( running >= 0 ) {
+      start = running;
+      end = log.length ();
+      more = true;
+    } else if ( !task.hasLog () ) {
+      rsp.sendError ( HttpServletResponse.SC_NOT_FOUND );
+      return;
+    }
+    if ( log.getName ().endsWith ( ".gz" ) ) {
+      rsp.sendError ( HttpServletResponse.SC_NOT_FOUND,
+                      "The executor's log is compressed" );
+      return;
+    }
+    long offset = start;
+    String from = req.getParameter ( "start" );
+    if ( from != null ) {
+      long skip;
+      try {
+        skip = Long.parseLong ( from );
+      } catch ( NumberFormatException ex ) {
+        skip = 0;
+      }
+      offset = start + Math.min ( end - start, Math.max ( 0, skip ) );
+    }
+    rsp.setContentType ( "text/plain;charset=" + run.getCharset ().name () );
+    rsp.setHeader ( "X-Text-Size", String.valueOf ( end - start ) );
+    if ( more ) {
+      rsp.setHeader ( "X-More-Data", "true" );
+    }
+    RandomAccessFile in = new RandomAccessFile ( log, "r" );
+    try {
+      in.seek ( offset );
+      OutputStream out = new PlainTextConsoleOutputStream ( rsp
+              .getOutputStream () );
+      byte[] buffer = new byte[8192];
+      long left = end - offset;
+      while ( left > 0 ) {
+        int len = in.read ( buffer, 0, (int) Math.min ( buffer.length, left ) );
+        if ( len < 0 ) {
+          break;
         }
+        out.write ( buffer, 0, len );
+        left -= len;
       }
+      out.flush ();
+    } finally {
+      in.close ();
     }
-    return rt;
+  }
+
+  @CheckForNull
+  public Computer getNodeForTask ( TaskHistory.Entry task ) {
+    return task.getNode () != null ? Jenkins.getInstance ().getComputer ( task
+            .getNode () ) : null;
   }
 
 }
@@ -0,0 +1,333 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Reads a task list file one entry at a time so a large list never has to be
+ * held in memory as text or as a JSON tree.
+ * <p>
+ * The file is a JSON array of objects with a "name", an optional "env" object
+ * and an optional "dependsOn" name or array of names, nulls standing for no
+ * prerequisite. Other keys are skipped.
+ *
+ * @author David van Laatum
+ */
+public class TaskListReader implements Closeable {
+
+  private final Reader in;
+  private final char[] buffer = new char[8192];
+  private int pos;
+  private int limit;
+  private int line = 1;
+  private boolean started;
+  private boolean finished;
+
+  public TaskListReader ( Reader in ) {
+    this.in = in;
+  }
+
+  /**
+   * @return the next entry, null once the end of the list is reached
+   */
+  public Entry next () throws IOException {
+    if ( finished ) {
+      return null;
+    }
+    if ( !started ) {
+      expect ( '[' );
+      started = true;
+      if ( peek () == ']' ) {
+        read ();
+        finished = true;
+        return null;
+      }
+    } else {
+      int c = read ();
+      if ( c == ']' ) {
+        finished = true;
+        return null;
+      } else if ( c != ',' ) {
+        throw error ( "expected ',' or ']'" );
+      }
+    }
+    return readEntry ();
+  }
+
+  private Entry readEntry () throws IOException {
+    Entry e = new Entry ();
+    expect ( '{' );
+    if ( peek () == '}' ) {
+      read ();
+    } else {
+      do {
+        String key = readString ();
+        expect ( ':' );
+        if ( "name".equals ( key ) ) {
+          e.name = readString ();
+        } else if ( "env".equals ( key ) ) {
+          readEnv ( e.env );
+        } else if ( "dependsOn".equals ( key ) ) {
+          e.dependsOn = readNames ();
+        } else {
+          skipValue ();
+        }
+      } while ( more ( '}' ) );
+    }
+    if ( e.name == null ) {
+      throw error ( "task without a name" );
+    }
+    return e;
+  }
+
+  private void readEnv ( Map<String, String> env ) throws IOException {
+    expect ( '{' );
+    if ( peek () == '}' ) {
+      read ();
+      return;
+    }
+    do {
+      String key = readString ();
+      expect ( ':' );
+      String value = readScalar ();
+      if ( value != null ) {
+        env.put ( key, value );
+      }
+    } while ( more ( '}' ) );
+  }
+
+  /**
+   * @return the names, JSON nulls are left out
+   */
+  private List<String> readNames () throws IOException {
+    List<String> rt = new ArrayList<String> ();
+    if ( peek () != '[' ) {
+      addName ( rt, readScalar () );
+      return rt;
+    }
+    read ();
+    if ( peek () == ']' ) {
+      read ();
+      return rt;
+    }
+    do {
+      addName ( rt, readScalar () );
+    } while ( more ( ']' ) );
+    return rt;
+  }
+
+  private static void addName ( List<String> names, String name ) {
+    if ( name != null ) {
+      names.add ( name );
+    }
+  }
+
+  /**
+   * @return true after a ',' and false after the closing character
+   */
+  private boolean more ( char close ) throws IOException {
+    int c = read ();
+    if ( c == ',' ) {
+      return true;
+    } else if ( c == close ) {
+      return false;
+    }
+    throw error ( "expected ',' or '" + close + "'" );
+  }
+
+  /**
+   * @return a string, number or boolean as text, null for a JSON null
+   */
+  private String readScalar () throws IOException {
+    int c = peek ();
+    if ( c == '"' ) {
+      return readString ();
+    } else if ( c == '{' || c == '[' ) {
+      throw error ( "expected a string" );
+    }
+    String literal = readLiteral ();
+    return "null".equals ( literal ) ? null : literal;
+  }
+
+  private String readLiteral () throws IOException {
+    StringBuilder sb = new StringBuilder ();
+    while ( true ) {
+      int c = peekRaw ();
+      if ( c == -1 || c == ',' || c == '}' || c == ']' || c == ':'
+                   || Character.isWhitespace ( c ) ) {
+        break;
+      }
+      sb.append ( (char) readRaw () );
+    }
+    if ( sb.length () == 0 ) {
+      throw error ( "expected a value" );
+    }
+    return sb.toString ();
+  }
+
+  private String readString () throws IOException {
+    expect ( '"' );
+    StringBuilder sb = new StringBuilder ();
+    while ( true ) {
+      int c = readRaw ();
+      if ( c == -1 ) {
+        throw error ( "unterminated string" );
+      } else if ( c == '"' ) {
+        return sb.toString ();
+      } else if ( c == '\\' ) {
+        c = readRaw ();
+        switch ( c ) {
+          case 'b':
+            sb.append ( '\b' );
+            break;
+          case 'f':
+            sb.append ( '\f' );
+            break;
+          case 'n':
+            sb.append ( '\n' );
+            break;
+          case 'r':
+            sb.append ( '\r' );
+            break;
+          case 't':
+            sb.append ( '\t' );
+            break;
+          case 'u':
+            int v = 0;
+            for ( int i = 0; i < 4; i++ ) {
+              int d = Character.digit ( readRaw (), 16 );
+              if ( d < 0 ) {
+                throw error ( "invalid unicode escape" );
+              }
+              v = v * 16 + d;
+            }
+            sb.append ( (char) v );
+            break;
+          case -1:
+            throw error ( "unterminated string" );
+          default:
+            sb.append ( (char) c );
+        }
+      } else {
+        sb.append ( (char) c );
+      }
+    }
+  }
+
+  private void skipValue () throws IOException {
+    int c = peek ();
+    if ( c == '"' ) {
+      readString ();
+    } else if ( c == '{' ) {
+      read ();
+      if ( peek () == '}' ) {
+        read ();
+        return;
+      }
+      do {
+        readString ();
+        expect ( ':' );
+        skipValue ();
+      } while ( more ( '}' ) );
+    } else if ( c == '[' ) {
+      read ();
+      if ( peek () == ']' ) {
+        read ();
+        return;
+      }
+      do {
+        skipValue ();
+      } while ( more ( ']' ) );
+    } else {
+      readLiteral ();
+    }
+  }
+
+  private void expect ( char expected ) throws IOException {
+    if ( read () != expected ) {
+      throw error ( "expected '" + expected + "'" );
+    }
+  }
+
+  private IOException error ( String message ) {
+    return new IOException ( "Malformed task list at line " + line + ": "
+                                     + message );
+  }
+
+  /**
+   * @return the next character that is not whitespace
+   */
+  private int read () throws IOException {
+    int c = readRaw ();
+    while ( c != -1 && Character.isWhitespace ( c ) ) {
+      c = readRaw ();
+    }
+    return c;
+  }
+
+  private int peek () throws IOException {
+    int c = peekRaw ();
+    while ( c != -1 && Character.isWhitespace ( c ) ) {
+      readRaw ();
+      c = peekRaw ();
+    }
+    return c;
+  }
+
+  private int readRaw () throws IOException {
+    int c = peekRaw ();
+    if ( c != -1 ) {
+      pos++;
+      if ( c == '\n' ) {
+        line++;
+      }
+    }
+    return c;
+  }
+
+  private int peekRaw () throws IOException {
+    if ( pos >= limit ) {
+      limit = in.read ( buffer );
+      pos = 0;
+      if ( limit <= 0 ) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[pos];
+  }
+
+  @Override
+  public void close () throws IOException {
+    in.close ();
+  }
+
+  public static class Entry {
+
+    private String name;
+    private final SortedMap<String, String> env
+            = new TreeMap<String, String> ();
+    private List<String> dependsOn;
+
+    public String getName () {
+      return name;
+    }
+
+    public Map<String, String> getEnv () {
+      return env;
+    }
+
+    /**
+     * @return the names of the prerequisites, null when there are none
+     */
+    public List<String> getDependsOn () {
+      return dependsOn != null && !dependsOn.isEmpty () ? dependsOn : null;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import hudson.model.Result;
+
+/**
+ * The results the build steps of a batch report for its tasks, one line per
+ * task in the file named by the <code>TASK_RESULTS</code> variable:
+ * <pre>
+ * name result [milliseconds]
+ * </pre>
+ * The result is SUCCESS, UNSTABLE, FAILURE or ABORTED, the time the task took
+ * is optional. Both are read from the end of the line, so the name may contain
+ * spaces. Blank lines and lines starting with # are skipped.
+ *
+ * @author David van Laatum
+ */
+public class TaskResults {
+
+  static final String VARIABLE = "TASK_RESULTS";
+  private static final Result[] RESULTS = { Result.SUCCESS, Result.UNSTABLE,
+                                            Result.FAILURE, Result.ABORTED };
+
+  private final Map<String, Entry> entries = new HashMap<String, Entry> ();
+
+  /**
+   * @param log where lines that can not be read are reported, may be null
+   */
+  public static TaskResults parse ( String text, PrintStream log ) {
+    TaskResults rt = new TaskResults ();
+    if ( text == null ) {
+      return rt;
+    }
+    for ( String line : text.split ( "\r?\n" ) ) {
+      line = line.trim ();
+      if ( line.isEmpty () || line.startsWith ( "#" ) ) {
+        continue;
+      }
+      // the name may contain spaces, so the fields are taken from the end
+      String name = line;
+      long duration = -1;
+      Result result = result ( last ( name ) );
+      if ( result == null && last ( name ).matches ( "\\d+" ) ) {
+        try {
+          duration = Long.parseLong ( last ( name ) );
+          name = rest ( name );
+          result = result ( last ( name ) );
+        } catch ( NumberFormatException ex ) {
+          result = null;
+        }
+      }
+      name = result != null ? rest ( name ) : "";
+      if ( name.isEmpty () ) {
+        if ( log != null ) {
+          log.println ( "Ignoring invalid task result: " + line );
+        }
+        continue;
+      }
+      rt.entries.put ( name, new Entry ( result, duration ) );
+    }
+    return rt;
+  }
+
+  private static String last ( String s ) {
+    int i = lastSpace ( s );
+    return i < 0 ? "" : s.substring ( i + 1 );
+  }
+
+  private static String rest ( String s ) {
+    return s.substring ( 0, Math.max ( lastSpace ( s ), 0 ) ).trim ();
+  }
+
+  private static int lastSpace ( String s ) {
+    for ( int i = s.length () - 1; i >= 0; i-- ) {
+      if ( Character.isWhitespace ( s.charAt ( i ) ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static Result result ( String s ) {
+    for ( Result r : RESULTS ) {
+      if ( r.toString ().equalsIgnoreCase ( s ) ) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the task's entry, null if the build steps did not report it
+   */
+  public Entry get ( String name ) {
+    return entries.get ( name );
+  }
+
+  public boolean isEmpty () {
+    return entries.isEmpty ();
+  }
+
+  /**
+   * One task's reported result.
+   */
+  public static class Entry {
+
+    private final Result result;
+    private final long duration;
+
+    Entry ( Result result, long duration ) {
+      this.result = result;
+      this.duration = duration;
+    }
+
+    public Result getResult () {
+      return result;
+    }
+
+    /**
+     * @return the time the task took, -1 if not reported
+     */
+    public long getDuration () {
+      return duration;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Running totals of the JUnit XML reports executors sync to the master,
+ * parsed as each sync lands so the counts are complete when the last task
+ * ends instead of after a pass over every report.
+ * <p>
+ * A report synced again replaces its earlier counts.
+ *
+ * @author David van Laatum
+ */
+public class TestReport {
+
+  private static final Logger LOG
+          = Logger.getLogger ( TestReport.class.getName () );
+  /**
+   * Failed test names kept for the build page.
+   */
+  private static final int MAX_FAILURES = 1000;
+
+  private final String pattern;
+  private final Map<String, Suite> files = new TreeMap<String, Suite> ();
+  private int total;
+  private int failed;
+  private int skipped;
+  private double duration;
+
+  public TestReport ( String pattern ) {
+    this.pattern = pattern;
+  }
+
+  public String getPattern () {
+    return pattern;
+  }
+
+  /**
+   * @return true if a synced file is one of the reports
+   */
+  public boolean matches ( String path ) {
+    for ( String p : pattern.split ( "," ) ) {
+      p = p.trim ();
+      if ( !p.isEmpty () && SelectorUtils.matchPath ( p, path ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the reports among the synced files.
+   *
+   * @param workspace where the files were synced to
+   * @param paths     the files synced
+   */
+  public void ingest ( FilePath workspace, List<String> paths ) throws
+          IOException, InterruptedException {
+    List<String> reports = new ArrayList<String> ();
+    for ( String p : paths ) {
+      if ( matches ( p ) ) {
+        reports.add ( p );
+      }
+    }
+    if ( !reports.isEmpty () ) {
+      add ( workspace.act ( new Parse ( reports ) ) );
+    }
+  }
+
+  synchronized void add ( Map<String, Suite> suites ) {
+    for ( Map.Entry<String, Suite> e : suites.entrySet () ) {
+      Suite old = files.put ( e.getKey (), e.getValue () );
+      if ( old != null ) {
+        count ( old, -1 );
+      }
+      count ( e.getValue (), 1 );
+    }
+  }
+
+  private void count ( Suite s, int sign ) {
+    total += sign * s.tests;
+    failed += sign * s.failures.size ();
+    skipped += sign * s.skipped;
+    duration += sign * s.time;
+  }
+
+  public synchronized int getTotal () {
+    return total;
+  }
+
+  public synchronized int getFailed () {
+    return failed;
+  }
+
+  public synchronized int getSkipped () {
+    return skipped;
+  }
+
+  public synchronized int getPassed () {
+    return total - failed - skipped;
+  }
+
+  public synchronized int getFiles () {
+    return files.size ();
+  }
+
+  /**
+   * @return time the tests took by their own reports
+   */
+  public synchronized String getDurationstring () {
+    return TaskCoordinator.durationString ( (long) ( duration * 1000 ) );
+  }
+
+  /**
+   * @return names of failed tests, up to a limit
+   */
+  public synchronized List<String> getFailures () {
+    List<String> rt = new ArrayList<String> ();
+    for ( Suite s : files.values () ) {
+      for ( String f : s.failures ) {
+        if ( rt.size () >= MAX_FAILURES ) {
+          return rt;
+        }
+        rt.add ( f );
+      }
+    }
+    return rt;
+  }
+
+  @Override
+  public synchronized String toString () {
+    return total + " tests in " + files.size () + " reports, " + failed
+           + " failed, " + skipped + " skipped";
+  }
+
+  public synchronized Object writeReplace () {
+    TestReport rt = new TestReport ( pattern );
+    rt.add ( files );
+    return rt;
+  }
+
+  /**
+   * Counts from one report file.
+   */
+  static class Suite implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private int tests;
+    private int skipped;
+    private double time;
+    private List<String> failures = new ArrayList<String> ();
+
+    int getTests () {
+      return tests;
+    }
+
+    int getSkipped () {
+      return skipped;
+    }
+
+    List<String> getFailures () {
+      return Collections.unmodifiableList ( failures );
+    }
+  }
+
+  /**
+   * Counts test cases with a SAX pass, a test case with a failure or error
+   * fails and one with skipped is skipped, however the suites are nested.
+   */
+  static class Handler extends DefaultHandler {
+
+    private final Suite suite = new Suite ();
+    private String current;
+    private boolean failed;
+    private boolean skipped;
+
+    @Override
+    public void startElement ( String uri, String localName, String qName,
+                               Attributes attributes ) {
+      if ( "testcase".equals ( qName ) ) {
+        String cls = attributes.getValue ( "classname" );
+        String name = attributes.getValue ( "name" );
+        current = cls != null ? cls + "." + name : name;
+        failed = false;
+        skipped = false;
+        String time = attributes.getValue ( "time" );
+        if ( time != null ) {
+          try {
+            suite.time += Double.parseDouble ( time.replace ( ",", "" ) );
+          } catch ( NumberFormatException ex ) {
+            LOG.log ( Level.FINE, "Bad time {0} for {1}", new Object[]{ time,
+                                                                       current } );
+          }
+        }
+      } else if ( current != null && ( "failure".equals ( qName ) || "error"
+              .equals ( qName ) ) ) {
+        failed = true;
+      } else if ( current != null && "skipped".equals ( qName ) ) {
+        skipped = true;
+      }
+    }
+
+    @Override
+    public void endElement ( String uri, String localName, String qName ) {
+      if ( "testcase".equals ( qName ) && current != null ) {
+        suite.tests++;
+        if ( failed ) {
+          suite.failures.add ( current );
+        } else if ( skipped ) {
+          suite.skipped++;
+        }
+        current = null;
+      }
+    }
+
+    Suite getSuite () {
+      return suite;
+    }
+  }
+
+  static Suite parse ( File f ) throws IOException {
+    try {
+      SAXParserFactory factory = SAXParserFactory.newInstance ();
+      factory.setNamespaceAware ( false );
+      factory.setValidating ( false );
+      // reports come from the build's workspace, never let them pull in
+      // files or URLs through entities or a DTD
+      factory.setFeature (
+              "http://xml.org/sax/features/external-general-entities", false );
+      factory.setFeature (
+              "http://xml.org/sax/features/external-parameter-entities", false );
+      factory.setFeature (
+              "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+              false );
+      SAXParser parser = factory.newSAXParser ();
+      Handler h = new Handler ();
+      parser.parse ( f, h );
+      return h.getSuite ();
+    } catch ( ParserConfigurationException ex ) {
+      throw new IOException ( ex );
+    } catch ( SAXException ex ) {
+      throw new IOException ( "Failed to parse " + f + ": " + ex.getMessage (),
+                              ex );
+    }
+  }
+
+  /**
+   * Parses report files, run against the workspace holding them. Files that
+   * do not parse are left out and logged.
+   */
+  private static class Parse implements
+          FilePath.FileCallable<Map<String, Suite>> {
+
+    private static final long serialVersionUID = 1L;
+    private final List<String> paths;
+
+    Parse ( List<String> paths ) {
+      this.paths = paths;
+    }
+
+    @Override
+    public Map<String, Suite> invoke ( File dir, VirtualChannel channel ) {
+      Map<String, Suite> rt = new HashMap<String, Suite> ();
+      for ( String p : paths ) {
+        try {
+          rt.put ( p, parse ( new File ( dir, p ) ) );
+        } catch ( IOException ex ) {
+          LOG.log ( Level.WARNING, "Skipping test report", ex );
+        }
+      }
+      return rt;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+
+/**
+ * A compressed copy of the parent build's workspace that executors unpack
+ * instead of each checking out from the SCM, so every executor sees the same
+ * files whatever the SCM.
+ * <p>
+ * Executors that reach their checkout before the snapshot exists wait for
+ * it. If it could not be made they fall back to a checkout of their own.
+ *
+ * @author David van Laatum
+ */
+public class WorkspaceSnapshot {
+
+  private static final Logger LOG
+          = Logger.getLogger ( WorkspaceSnapshot.class.getName () );
+  public static final String FILE = "workspace.tgz";
+  /**
+   * Times the files evicted by other executors are sent again before the
+   * whole snapshot is unpacked instead.
+   */
+  private static final int RESEND_ATTEMPTS = 3;
+
+  private final File file;
+  private final File dir;
+  private final CountDownLatch ready = new CountDownLatch ( 1 );
+  private volatile boolean available;
+  private List<SnapshotCache.Entry> entries;
+
+  public WorkspaceSnapshot ( File file ) {
+    this.file = file;
+    this.dir = new File ( file.getParentFile (), "snapshot" );
+  }
+
+  /**
+   * Packs the workspace, waiting executors are released even if it fails.
+   */
+  public void create ( FilePath workspace, TaskListener listener ) throws
+          IOException, InterruptedException {
+    try {
+      long start = System.currentTimeMillis ();
+      OutputStream out = new BufferedOutputStream ( new FileOutputStream (
+              file ) );
+      int count;
+      try {
+        count = workspace.archive ( ArchiverFactory.TARGZ, out,
+                                    new DirScanner.Full () );
+      } finally {
+        out.close ();
+      }
+      available = true;
+      listener.getLogger ().println (
+              "Packed " + count + " files into a workspace snapshot of "
+              + file.length () / 1024 + " KiB in " + TaskCoordinator
+              .durationString ( System.currentTimeMillis () - start ) );
+    } finally {
+      ready.countDown ();
+    }
+  }
+
+  /**
+   * Releases waiting executors without a snapshot, they check out from the
+   * SCM instead.
+   */
+  public void cancel () {
+    ready.countDown ();
+  }
+
+  /**
+   * Replaces the contents of an executor's workspace with the snapshot.
+   *
+   * @return false if there is no snapshot and the executor should check out
+   *         itself
+   */
+  public boolean restore ( FilePath workspace, TaskListener listener ) throws
+          IOException, InterruptedException {
+    if ( ready.getCount () > 0 ) {
+      listener.getLogger ().println ( "Waiting for the workspace snapshot" );
+    }
+    ready.await ();
+    if ( !available ) {
+      listener.getLogger ().println (
+              "No workspace snapshot, checking out from the SCM" );
+      return false;
+    }
+    long start = System.currentTimeMillis ();
+    workspace.mkdirs ();
+    workspace.deleteContents ();
+    InputStream in = new FileInputStream ( file );
+    try {
+      workspace.untarFrom ( in, FilePath.TarCompression.GZIP );
+    } finally {
+      in.close ();
+    }
+    listener.getLogger ().println (
+            "Unpacked workspace snapshot of " + file.length () / 1024
+            + " KiB in " + TaskCoordinator.durationString ( System
+            .currentTimeMillis () - start ) );
+    return true;
+  }
+
+  /**
+   * Fills an executor's workspace from the agent's cache, sending only the
+   * files the cache does not hold yet.
+   *
+   * @param cache the cache directory on the executor's agent
+   * @param limit cache size in bytes
+   * @return false if there is no snapshot and the executor should check out
+   *         itself
+   */
+  public boolean restore ( FilePath workspace, FilePath cache, long limit,
+                           TaskListener listener ) throws IOException,
+                                                          InterruptedException {
+    if ( ready.getCount () > 0 ) {
+      listener.getLogger ().println ( "Waiting for the workspace snapshot" );
+    }
+    ready.await ();
+    if ( !available ) {
+      listener.getLogger ().println (
+              "No workspace snapshot, checking out from the SCM" );
+      return false;
+    }
+    long start = System.currentTimeMillis ();
+    List<SnapshotCache.Entry> all = getEntries ();
+    Map<String, String> paths = new HashMap<String, String> ();
+    Map<String, Long> sizes = new HashMap<String, Long> ();
+    for ( SnapshotCache.Entry e : all ) {
+      paths.put ( e.getHash (), e.getPath () );
+      sizes.put ( e.getHash (), e.getSize () );
+    }
+    Set<String> present = cache.act ( new SnapshotCache.Probe (
+            new HashSet<String> ( paths.keySet () ) ) );
+    Map<String, String> missed = new HashMap<String, String> ( paths );
+    missed.keySet ().removeAll ( present );
+    Map<String, String> send = missed;
+    long sent = 0;
+    SnapshotCache.Filled filled;
+    for ( int attempt = 1;; attempt++ ) {
+      for ( String h : send.keySet () ) {
+        sent += sizes.get ( h );
+      }
+      filled = workspace.act ( new SnapshotCache.Assemble ( cache
+              .getRemote (), send ( cache, send ), all, limit ) );
+      if ( filled.getMissing ().isEmpty () ) {
+        break;
+      }
+      if ( attempt == RESEND_ATTEMPTS ) {
+        listener.getLogger ().println (
+                "Snapshot cache keeps losing files to other executors,"
+                + " unpacking the whole snapshot" );
+        return restore ( workspace, listener );
+      }
+      listener.getLogger ().println (
+              "Snapshot cache evicted " + filled.getMissing ().size ()
+              + " files while they were sent, sending them again" );
+      send = new HashMap<String, String> ();
+      for ( String h : filled.getMissing () ) {
+        send.put ( h, paths.get ( h ) );
+        missed.put ( h, paths.get ( h ) );
+      }
+    }
+    long hit = 0;
+    int hits = 0;
+    for ( String h : present ) {
+      if ( !missed.containsKey ( h ) ) {
+        hit += sizes.get ( h );
+        hits++;
+      }
+    }
+    listener.getLogger ().println (
+            "Filled workspace with " + filled.getFiles () + " files ("
+            + filled.getBytes () / 1024 + " KiB) in " + TaskCoordinator
+            .durationString ( System.currentTimeMillis () - start ) );
+    listener.getLogger ().println (
+            "Snapshot cache: hit " + hits + " files (" + hit / 1024
+            + " KiB), missed " + missed.size () + " files (" + sent / 1024
+            + " KiB), evicted " + filled.getEvicted () / 1024 + " KiB" );
+    return true;
+  }
+
+  /**
+   * Sends the given files into a new directory under the cache's incoming
+   * directory, named by hash.
+   *
+   * @param paths relative path of one file for each hash to send
+   *
+   * @return name of the directory, null if there was nothing to send
+   */
+  private String send ( FilePath cache, Map<String, String> paths ) throws
+          IOException, InterruptedException {
+    if ( paths.isEmpty () ) {
+      return null;
+    }
+    FilePath incoming = cache.child ( "incoming" );
+    incoming.mkdirs ();
+    incoming = incoming.createTempDir ( "snapshot", "" );
+    File tmp = File.createTempFile ( "blobs", ".tgz", file.getParentFile () );
+    try {
+      OutputStream out = new BufferedOutputStream ( new FileOutputStream (
+              tmp ) );
+      try {
+        new FilePath ( dir ).archive ( ArchiverFactory.TARGZ, out,
+                                       new SnapshotCache.Selected ( paths ) );
+      } finally {
+        out.close ();
+      }
+      InputStream in = new FileInputStream ( tmp );
+      try {
+        incoming.untarFrom ( in, FilePath.TarCompression.GZIP );
+      } finally {
+        in.close ();
+      }
+    } finally {
+      if ( !tmp.delete () ) {
+        LOG.log ( Level.WARNING, "Failed to delete {0}", tmp );
+      }
+    }
+    return incoming.getName ();
+  }
+
+  /**
+   * @return the files in the snapshot, unpacked on the master the first time
+   *         they are needed
+   */
+  private synchronized List<SnapshotCache.Entry> getEntries () throws
+          IOException, InterruptedException {
+    if ( entries == null ) {
+      FilePath d = new FilePath ( dir );
+      d.deleteRecursive ();
+      d.mkdirs ();
+      InputStream in = new FileInputStream ( file );
+      try {
+        d.untarFrom ( in, FilePath.TarCompression.GZIP );
+      } finally {
+        in.close ();
+      }
+      entries = SnapshotCache.index ( dir );
+    }
+    return entries;
+  }
+
+  /**
+   * Removes the snapshot once the executors no longer need it.
+   */
+  public void delete () {
+    available = false;
+    if ( file.exists () && !file.delete () ) {
+      LOG.log ( Level.WARNING, "Failed to delete {0}", file );
+    }
+    try {
+      new FilePath ( dir ).deleteRecursive ();
+    } catch ( IOException ex ) {
+      LOG.log ( Level.WARNING, "Failed to delete " + dir, ex );
+    } catch ( InterruptedException ex ) {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+}
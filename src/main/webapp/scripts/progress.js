@@ -0,0 +1,203 @@
+/*
+ * Keeps a distributed build's page up to date from its progress API. Only
+ * tasks changed since the last poll are fetched and only one page of the
+ * task table is rendered at a time.
+ */
+function distributedProgress ( url, rootURL, imagesURL ) {
+  var PAGE = 100;
+  var POLL = 5000;
+  var tasks = {};
+  var version = 0;
+  var page = 0;
+  var sortKey = "name";
+  var sortDesc = false;
+
+  function $id ( id ) {
+    return document.getElementById ( id );
+  }
+
+  function duration ( ms ) {
+    if ( ms === undefined ) {
+      return "";
+    }
+    var s = Math.floor ( Math.abs ( ms ) / 1000 );
+    var h = Math.floor ( s / 3600 );
+    var m = Math.floor ( s / 60 ) % 60;
+    var rt = ( h > 0 ? h + "h " : "" ) + ( h > 0 || m > 0 ? m + "m " : "" );
+    return s > 0 ? rt + ( s % 60 ) + "s" : Math.abs ( ms ) + "ms";
+  }
+
+  function date ( ms ) {
+    return ms !== undefined ? new Date ( ms ).toLocaleString () : "";
+  }
+
+  function cell ( row, text, right ) {
+    var td = document.createElement ( "td" );
+    td.appendChild ( document.createTextNode ( text ) );
+    if ( right ) {
+      td.style.textAlign = "right";
+    }
+    row.appendChild ( td );
+    return td;
+  }
+
+  function link ( td, href, text ) {
+    var a = document.createElement ( "a" );
+    a.href = href;
+    a.appendChild ( document.createTextNode ( text ) );
+    td.appendChild ( a );
+  }
+
+  function clear ( e ) {
+    while ( e.firstChild ) {
+      e.removeChild ( e.firstChild );
+    }
+  }
+
+  function compare ( a, b ) {
+    var x = a[sortKey];
+    var y = b[sortKey];
+    if ( x === y ) {
+      return a.name < b.name ? -1 : a.name > b.name ? 1 : 0;
+    }
+    if ( x === undefined ) {
+      return 1;
+    }
+    if ( y === undefined ) {
+      return -1;
+    }
+    return ( x < y ? -1 : 1 ) * ( sortDesc ? -1 : 1 );
+  }
+
+  function renderTasks () {
+    var list = [];
+    for ( var name in tasks ) {
+      if ( tasks.hasOwnProperty ( name ) ) {
+        list.push ( tasks[name] );
+      }
+    }
+    list.sort ( compare );
+    var pages = Math.max ( 1, Math.ceil ( list.length / PAGE ) );
+    page = Math.min ( page, pages - 1 );
+    var body = $id ( "distributed-tasks" ).tBodies[0];
+    clear ( body );
+    for ( var i = page * PAGE; i < list.length && i < ( page + 1 ) * PAGE; i++ ) {
+      var t = list[i];
+      var row = document.createElement ( "tr" );
+      link ( cell ( row, "" ), "task/" + encodeURIComponent ( t.name ),
+             t.name );
+      cell ( row, t.executor !== undefined ? t.executor : "", true );
+      cell ( row, date ( t.started ) );
+      cell ( row, date ( t.finished ) );
+      cell ( row, duration ( t.duration ), true );
+      cell ( row, t.diff !== undefined ? ( t.diff < 0 ? "-" : "+" )
+                  + duration ( t.diff ) : "", true );
+      cell ( row, t.status );
+      body.appendChild ( row );
+    }
+    var pager = $id ( "distributed-pager" );
+    clear ( pager );
+    if ( pages > 1 ) {
+      var prev = document.createElement ( "a" );
+      prev.href = "#";
+      prev.appendChild ( document.createTextNode ( "Previous" ) );
+      prev.onclick = function () {
+        page = Math.max ( 0, page - 1 );
+        renderTasks ();
+        return false;
+      };
+      var next = document.createElement ( "a" );
+      next.href = "#";
+      next.appendChild ( document.createTextNode ( "Next" ) );
+      next.onclick = function () {
+        page++;
+        renderTasks ();
+        return false;
+      };
+      pager.appendChild ( prev );
+      pager.appendChild ( document.createTextNode ( " Page " + ( page + 1 )
+                                                    + " of " + pages + " " ) );
+      pager.appendChild ( next );
+    }
+  }
+
+  function renderExecutors ( executors ) {
+    var body = $id ( "distributed-executors" ).tBodies[0];
+    clear ( body );
+    for ( var i = 0; i < executors.length; i++ ) {
+      var e = executors[i];
+      var row = document.createElement ( "tr" );
+      var icon = document.createElement ( "img" );
+      icon.src = imagesURL + "/24x24/" + e.status;
+      icon.height = 24;
+      icon.width = 24;
+      cell ( row, "" ).appendChild ( icon );
+      link ( cell ( row, "" ), rootURL + "/" + e.url, e.name );
+      cell ( row, e.node );
+      cell ( row, e.stage );
+      cell ( row, e.task !== undefined ? e.task + ( e.batch > 1 ? " and "
+                                                    + ( e.batch - 1 )
+                                                    + " more" : "" ) + " for "
+                                         + duration ( e.duration ) : "" );
+      body.appendChild ( row );
+    }
+  }
+
+  function load ( since, offset, first ) {
+    var req = new XMLHttpRequest ();
+    req.open ( "GET", url + "?since=" + since + "&offset=" + offset, true );
+    req.onreadystatechange = function () {
+      if ( req.readyState !== 4 ) {
+        return;
+      }
+      if ( req.status !== 200 ) {
+        setTimeout ( function () {
+          load ( version, 0, null );
+        }, POLL );
+        return;
+      }
+      var rsp = JSON.parse ( req.responseText );
+      // changes made while paging are fetched again by the next poll
+      first = first || rsp;
+      if ( rsp.full && offset === 0 ) {
+        tasks = {};
+      }
+      for ( var i = 0; i < rsp.tasks.length; i++ ) {
+        tasks[rsp.tasks[i].name] = rsp.tasks[i];
+      }
+      if ( rsp.tasks.length > 0 && offset + rsp.tasks.length < rsp.matched ) {
+        load ( since, offset + rsp.tasks.length, first );
+        return;
+      }
+      version = first.version;
+      $id ( "distributed-summary" ).innerHTML = "";
+      $id ( "distributed-summary" ).appendChild ( document.createTextNode (
+              rsp.completed + " of " + rsp.total + " tasks complete, "
+              + rsp.running + " running, " + rsp.failed + " failed"
+              + ( rsp.eta !== undefined ? ", expected to finish at "
+                  + date ( rsp.eta ) + " (in " + duration ( rsp.remaining )
+                  + ")" : "" ) ) );
+      renderExecutors ( rsp.executors );
+      renderTasks ();
+      if ( rsp.building ) {
+        setTimeout ( function () {
+          load ( version, 0, null );
+        }, POLL );
+      }
+    };
+    req.send ( null );
+  }
+
+  var headers = $id ( "distributed-tasks" ).tHead.rows[0].cells;
+  for ( var i = 0; i < headers.length; i++ ) {
+    headers[i].style.cursor = "pointer";
+    headers[i].onclick = ( function ( key ) {
+      return function () {
+        sortDesc = sortKey === key ? !sortDesc : false;
+        sortKey = key;
+        renderTasks ();
+      };
+    } ) ( headers[i].getAttribute ( "data-sort" ) );
+  }
+  load ( 0, 0, null );
+}
@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author David van Laatum
+ */
+public class BuildTimelineTest {
+
+  @Test
+  public void testMetrics () {
+    BuildTimeline timeline = new BuildTimeline ( 1000, 2000, 1000 );
+    BuildTimeline.Lane a = new BuildTimeline.Lane (
+            "a", null, 1100, 2000, stages ( 1100, 1150, 1200, 1800, 1900 ), 0 );
+    a.addTask ( "t1", 1200, 1500, false );
+    a.addTask ( "t2", 1500, 1700, false );
+    BuildTimeline.Lane b = new BuildTimeline.Lane (
+            "b", null, 1300, 2000, stages ( 1300, 0, 1400, 1850, 0 ), 0 );
+    b.addTask ( "t3", 1400, 1800, true );
+    timeline.addLane ( a );
+    timeline.addLane ( b );
+
+    assertEquals ( 100, a.getQueueWait () );
+    assertEquals ( 300, b.getQueueWait () );
+    assertEquals ( 100, a.getSetup () );
+    assertEquals ( 500, a.getBusy () );
+    assertEquals ( 100, a.getIdle () );
+    assertEquals ( 50, b.getIdle () );
+    assertEquals ( 100, a.getTailIdle () );
+    assertEquals ( 0, b.getTailIdle () );
+    assertEquals ( 100, a.getSync () );
+    assertEquals ( 150, b.getSync () );
+    assertArrayEquals ( new long[]{ 400, 200, 900, 150, 100, 250 }, timeline
+                        .getTotals () );
+
+    assertEquals ( 600, timeline.getMakespan () );
+    assertEquals ( 450, timeline.getIdealMakespan () );
+    assertEquals ( 75, timeline.getEfficiency () );
+    assertEquals ( 56, timeline.getUtilization () );
+
+    List<BuildTimeline.Segment> segments = a.getSegments ();
+    assertEquals ( 6, segments.size () );
+    assertEquals ( "queue", segments.get ( 0 ).getKind () );
+    assertEquals ( "task", segments.get ( 2 ).getKind () );
+    assertEquals ( 20.0, segments.get ( 2 ).getLeft (), 0.001 );
+    assertEquals ( 30.0, segments.get ( 2 ).getWidth (), 0.001 );
+    assertEquals ( "failed", b.getSegments ().get ( 2 ).getKind () );
+  }
+
+  @Test
+  public void testMerge () {
+    BuildTimeline timeline = new BuildTimeline ( 0, 100000, 0 );
+    BuildTimeline.Lane a = new BuildTimeline.Lane (
+            "a", null, 0, 100000, stages ( 0, 0, 0 ), 0 );
+    for ( int i = 999; i >= 0; i-- ) {
+      a.addTask ( "t" + i, i * 50, i * 50 + 40, i == 500 );
+    }
+    a.addTask ( "long", 60000, 90000, false );
+    timeline.addLane ( a );
+
+    List<BuildTimeline.Segment> segments = a.getSegments ();
+    assertEquals ( 3, segments.size () );
+    assertEquals ( "1000 tasks", segments.get ( 1 ).getName () );
+    assertEquals ( "failed", segments.get ( 1 ).getKind () );
+    assertEquals ( 49990, segments.get ( 1 ).getDuration () );
+    assertEquals ( "long", segments.get ( 2 ).getName () );
+    assertEquals ( 70000, a.getBusy () );
+  }
+
+  private static long[] stages ( long... times ) {
+    long[] rt = new long[BuildStage.values ().length];
+    System.arraycopy ( times, 0, rt, 0, times.length );
+    return rt;
+  }
+}
@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author David van Laatum
+ */
+public class DurationPredictorTest {
+
+  @Test
+  public void testEwma () {
+    DurationPredictor p = new DurationPredictor ();
+    p.addSample ( "a.Test1", 1000 );
+    p.addSample ( "a.Test1", 3000 );
+    assertTrue ( p.isKnown ( "a.Test1" ) );
+    assertEquals ( 2000, p.predict ( "a.Test1" ) );
+    p.addSample ( "a.Test1", 2000 );
+    assertEquals ( 2000, p.predict ( "a.Test1" ) );
+  }
+
+  @Test
+  public void testFallbacks () {
+    DurationPredictor p = new DurationPredictor ();
+    assertEquals ( 0, p.predict ( "Unknown" ) );
+    p.addSample ( "a.Test1", 1000 );
+    p.addSample ( "a.Test2", 3000 );
+    p.addSample ( "b/Test3", 8000 );
+    assertFalse ( p.isKnown ( "a.Test4" ) );
+    assertEquals ( 2000, p.predict ( "a.Test4" ) );
+    assertEquals ( 8000, p.predict ( "b/Test5" ) );
+    assertEquals ( 4000, p.predict ( "Unknown" ) );
+  }
+
+  @Test
+  public void testNodeFactor () {
+    DurationPredictor p = new DurationPredictor ();
+    p.addSample ( "a", "fast", 1000 );
+    p.addSample ( "b", "fast", 2000 );
+    p.addSample ( "a", "slow", 4000 );
+    p.addSample ( "b", "slow", 8000 );
+    assertEquals ( 2500, p.predict ( "a" ) );
+    assertEquals ( 0.4, p.getNodeFactor ( "fast" ), 0.001 );
+    assertEquals ( 1.6, p.getNodeFactor ( "slow" ), 0.001 );
+    assertEquals ( 1.0, p.getNodeFactor ( "other" ), 0.001 );
+    assertEquals ( 4000, p.predict ( "a", "slow" ) );
+  }
+
+  @Test
+  public void testCohort () {
+    assertEquals ( "com.example", DurationPredictor.cohortOf (
+                   "com.example.FooTest" ) );
+    assertEquals ( "suite/a", DurationPredictor.cohortOf ( "suite/a#1" ) );
+    assertNull ( DurationPredictor.cohortOf ( "Task1" ) );
+    assertNull ( DurationPredictor.cohortOf ( ".hidden" ) );
+  }
+}
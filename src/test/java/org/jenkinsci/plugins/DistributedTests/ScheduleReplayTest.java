@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author David van Laatum
+ */
+public class ScheduleReplayTest {
+
+  @Test
+  public void testOrder () {
+    ScheduleReplay r = replay ();
+    assertEquals ( Arrays.asList ( "a", "b", "c", "d" ), names ( r,
+                   ScheduleReplay.Policy.CriticalPath ) );
+    assertEquals ( Arrays.asList ( "b", "c", "a", "d" ), names ( r,
+                   ScheduleReplay.Policy.LongestFirst ) );
+    assertEquals ( Arrays.asList ( "d", "a", "c", "b" ), names ( r,
+                   ScheduleReplay.Policy.ShortestFirst ) );
+    assertEquals ( Arrays.asList ( "a", "b", "c", "d" ), names ( r,
+                   ScheduleReplay.Policy.Name ) );
+  }
+
+  @Test
+  public void testSimulate () {
+    ScheduleReplay r = replay ();
+    assertEquals ( 210, r.getWork () );
+    assertEquals ( 150, r.simulate ( 2, new double[0],
+                                     ScheduleReplay.Policy.CriticalPath )
+                   .getMakespan () );
+    assertEquals ( 300, r.simulate ( 2, new double[]{ 2 },
+                                     ScheduleReplay.Policy.CriticalPath )
+                   .getMakespan () );
+    List<ScheduleReplay.Outcome> outcomes = r.simulate ( new int[]{ 1, 2 },
+                                                         new double[0],
+                                                         ScheduleReplay.Policy
+                                                         .values () );
+    assertEquals ( 8, outcomes.size () );
+    assertEquals ( 210, outcomes.get ( 0 ).getMakespan () );
+    assertEquals ( 100, outcomes.get ( 0 ).getUtilization () );
+  }
+
+  @Test
+  public void testParse () {
+    assertArrayEquals ( new int[]{ 20, 30 }, ScheduleReplay.parseExecutors (
+                        "20, 30", 40 ) );
+    assertArrayEquals ( new double[]{ 1, 1.5 }, ScheduleReplay.parseFactors (
+                        "1,1.5" ), 0 );
+    assertEquals ( 0, ScheduleReplay.parseFactors ( " " ).length );
+    assertArrayEquals ( new ScheduleReplay.Policy[]{
+      ScheduleReplay.Policy.Name }, ScheduleReplay.parsePolicy ( "name" ) );
+    assertEquals ( ScheduleReplay.Policy.values ().length, ScheduleReplay
+                   .parsePolicy ( "all" ).length );
+    try {
+      ScheduleReplay.parseExecutors ( "0", 40 );
+      fail ( "Zero executors accepted" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "Invalid executor count: 0", ex.getMessage () );
+    }
+  }
+
+  @Test
+  public void testLimits () {
+    assertEquals ( 20, replay ().getMaxExecutors ( 2 ) );
+    assertEquals ( 10, replay ().getMaxExecutors ( 0 ) );
+    try {
+      ScheduleReplay.parseExecutors ( "2000000000", 20 );
+      fail ( "Huge executor count accepted" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "At most 20 executors can be simulated", ex
+                     .getMessage () );
+    }
+    StringBuilder many = new StringBuilder ( "1" );
+    for ( int i = 0; i < ScheduleReplay.MAX_VALUES; i++ ) {
+      many.append ( ",1" );
+    }
+    try {
+      ScheduleReplay.parseFactors ( many.toString () );
+      fail ( "Too many factors accepted" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "At most 20 values can be given", ex.getMessage () );
+    }
+  }
+
+  /**
+   * c waits on a, so a has the longest critical path despite its short
+   * prediction.
+   */
+  private static ScheduleReplay replay () {
+    List<String> none = Collections.emptyList ();
+    List<ScheduleReplay.Sample> samples = new ArrayList<ScheduleReplay.Sample> ();
+    samples.add ( new ScheduleReplay.Sample ( "a", 100, 10, none ) );
+    samples.add ( new ScheduleReplay.Sample ( "b", 50, 50, none ) );
+    samples.add ( new ScheduleReplay.Sample ( "c", 50, 45, Collections
+                                              .singletonList ( "a" ) ) );
+    samples.add ( new ScheduleReplay.Sample ( "d", 10, 1, none ) );
+    return new ScheduleReplay ( samples, 2, 150 );
+  }
+
+  private static List<String> names ( ScheduleReplay r,
+                                      ScheduleReplay.Policy policy ) {
+    List<String> rt = new ArrayList<String> ();
+    for ( ScheduleReplay.Sample s : r.order ( policy ) ) {
+      rt.add ( s.getName () );
+    }
+    return rt;
+  }
+}
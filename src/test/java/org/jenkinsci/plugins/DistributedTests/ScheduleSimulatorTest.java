@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author David van Laatum
+ */
+public class ScheduleSimulatorTest {
+
+  @Test
+  public void testSchedule () {
+    ScheduleSimulator sim = new ScheduleSimulator ();
+    sim.addExecutor ( 0, 1 );
+    sim.addExecutor ( 0, 2 );
+    sim.addTask ( "a", 100, null );
+    sim.addTask ( "b", 100, null );
+    sim.addTask ( "c", 50, Collections.singletonList ( "a" ) );
+    ScheduleSimulator.Result r = sim.run ( 0 );
+    assertEquals ( 200, r.getFinish () );
+    assertEquals ( 200, r.getMakespan () );
+    assertEquals ( 350, r.getBusy () );
+    assertEquals ( 87, r.getUtilization () );
+    assertEquals ( 50, r.getTailIdle () );
+    assertEquals ( 2, r.getTasks ( 0 ) );
+    assertEquals ( 200, r.getBusy ( 1 ) );
+    assertEquals ( 0, r.getUnscheduled () );
+  }
+
+  @Test
+  public void testRunning () {
+    ScheduleSimulator sim = new ScheduleSimulator ();
+    sim.addExecutor ( 0, 1 );
+    sim.addRunning ( "r", 0, 300 );
+    sim.addTask ( "d", 100, Collections.singletonList ( "r" ) );
+    sim.addTask ( "x", 50, Collections.singletonList ( "done" ) );
+    assertEquals ( 450, sim.run ( 100 ).getFinish () );
+
+    sim = new ScheduleSimulator ();
+    sim.addTask ( "a", 100, null );
+    ScheduleSimulator.Result r = sim.run ( 0 );
+    assertEquals ( 1, r.getUnscheduled () );
+    assertEquals ( 0, r.getMakespan () );
+  }
+}
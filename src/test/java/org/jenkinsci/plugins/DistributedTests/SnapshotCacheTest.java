@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author David van Laatum
+ */
+public class SnapshotCacheTest {
+
+  @Test
+  public void testAssemble () throws IOException {
+    File root = createDir ();
+    File snapshot = new File ( root, "snapshot" );
+    write ( new File ( snapshot, "a.txt" ), "same" );
+    write ( new File ( snapshot, "sub/b.txt" ), "same" );
+    write ( new File ( snapshot, "sub/c.txt" ), "other" );
+    List<SnapshotCache.Entry> entries = SnapshotCache.index ( snapshot );
+    assertEquals ( 3, entries.size () );
+    assertEquals ( "sub/b.txt", entries.get ( 1 ).getPath () );
+    assertEquals ( entries.get ( 0 ).getHash (), entries.get ( 1 ).getHash () );
+
+    File cache = new File ( root, "cache" );
+    String same = entries.get ( 0 ).getHash ();
+    String other = entries.get ( 2 ).getHash ();
+    assertTrue ( new SnapshotCache.Probe ( new HashSet<String> ( Arrays.asList (
+                 same, other ) ) ).invoke ( cache, null ).isEmpty () );
+
+    File incoming = new File ( cache, "incoming/x" );
+    write ( new File ( incoming, same ), "same" );
+    write ( new File ( incoming, other ), "other" );
+    File workspace = new File ( root, "ws" );
+    write ( new File ( workspace, "stale.txt" ), "stale" );
+    SnapshotCache.Filled stats = new SnapshotCache.Assemble (
+            cache.getPath (), "x", entries, 1024 ).invoke ( workspace, null );
+    assertTrue ( stats.getMissing ().isEmpty () );
+    assertEquals ( 3, stats.getFiles () );
+    assertEquals ( 13, stats.getBytes () );
+    assertEquals ( 0, stats.getEvicted () );
+    assertFalse ( new File ( workspace, "stale.txt" ).exists () );
+    assertEquals ( 5, new File ( workspace, "sub/c.txt" ).length () );
+    assertEquals ( new HashSet<String> ( Arrays.asList ( same, other ) ),
+                   new SnapshotCache.Probe ( new HashSet<String> ( Arrays
+                           .asList ( same, other ) ) ).invoke ( cache, null ) );
+
+    new File ( cache, "blobs/" + same ).setLastModified ( 1000000000000L );
+    stats = new SnapshotCache.Assemble ( cache.getPath (), null,
+                                         Collections.singletonList ( entries
+                                                 .get ( 2 ) ), 5 ).invoke (
+            workspace, null );
+    assertEquals ( 4, stats.getEvicted () );
+    assertFalse ( new File ( cache, "blobs/" + same ).exists () );
+  }
+
+  @Test
+  public void testInterleaved () throws IOException {
+    File root = createDir ();
+    File snapshot = new File ( root, "snapshot" );
+    write ( new File ( snapshot, "a.txt" ), "aaaa" );
+    write ( new File ( snapshot, "b.txt" ), "bbbb" );
+    List<SnapshotCache.Entry> entries = SnapshotCache.index ( snapshot );
+    String a = entries.get ( 0 ).getHash ();
+    String b = entries.get ( 1 ).getHash ();
+    File cache = new File ( root, "cache" );
+    write ( new File ( cache, "blobs/" + a ), "aaaa" );
+    write ( new File ( cache, "blobs/" + b ), "bbbb" );
+    new File ( cache, "blobs/" + a ).setLastModified ( 1000000000000L );
+    new File ( cache, "blobs/" + b ).setLastModified ( 1000000000000L );
+
+    // the first executor finds both files cached, which keeps them from
+    // being evicted ahead of older files
+    assertEquals ( 2, new SnapshotCache.Probe ( new HashSet<String> ( Arrays
+            .asList ( a, b ) ) ).invoke ( cache, null ).size () );
+    assertTrue ( new File ( cache, "blobs/" + a ).lastModified ()
+                         > 1000000000000L );
+
+    // a second executor with a smaller snapshot fills its workspace and
+    // evicts the least recently used before the first gets to fill its own
+    new File ( cache, "blobs/" + a ).setLastModified ( 1000000000000L );
+    write ( new File ( cache, "incoming/y/c" ), "cccc" );
+    SnapshotCache.Filled other = new SnapshotCache.Assemble (
+            cache.getPath (), "y", Collections.singletonList (
+                    new SnapshotCache.Entry ( "c.txt", "c", 4, false ) ), 8 )
+            .invoke ( new File ( root, "other" ), null );
+    assertEquals ( 4, other.getEvicted () );
+
+    File workspace = new File ( root, "ws" );
+    write ( new File ( workspace, "kept.txt" ), "kept" );
+    SnapshotCache.Filled filled = new SnapshotCache.Assemble (
+            cache.getPath (), null, entries, 1024 ).invoke ( workspace, null );
+    assertEquals ( Collections.singleton ( a ), filled.getMissing () );
+    assertEquals ( 0, filled.getFiles () );
+    assertTrue ( new File ( workspace, "kept.txt" ).exists () );
+
+    // sending the missing file again fills the workspace
+    write ( new File ( cache, "incoming/z/" + a ), "aaaa" );
+    filled = new SnapshotCache.Assemble ( cache.getPath (), "z", entries,
+                                          1024 ).invoke ( workspace, null );
+    assertTrue ( filled.getMissing ().isEmpty () );
+    assertEquals ( 2, filled.getFiles () );
+    assertFalse ( new File ( workspace, "kept.txt" ).exists () );
+    assertEquals ( 4, new File ( workspace, "b.txt" ).length () );
+  }
+
+  @Test
+  public void testEvict () throws IOException {
+    File blobs = createDir ();
+    write ( new File ( blobs, "old" ), "12345" );
+    write ( new File ( blobs, "new" ), "12345" );
+    new File ( blobs, "old" ).setLastModified ( 1000000000000L );
+    new File ( blobs, "new" ).setLastModified ( 2000000000000L );
+    assertEquals ( 0, SnapshotCache.evict ( blobs, 10 ) );
+    assertEquals ( 5, SnapshotCache.evict ( blobs, 9 ) );
+    assertFalse ( new File ( blobs, "old" ).exists () );
+    assertTrue ( new File ( blobs, "new" ).exists () );
+  }
+
+  private static void write ( File f, String content ) throws IOException {
+    f.getParentFile ().mkdirs ();
+    FileOutputStream out = new FileOutputStream ( f );
+    try {
+      out.write ( content.getBytes ( "UTF-8" ) );
+    } finally {
+      out.close ();
+    }
+  }
+
+  private static File createDir () throws IOException {
+    File f = File.createTempFile ( "snapshotcache", "" );
+    if ( !f.delete () || !f.mkdir () ) {
+      throw new IOException ( "Failed to create " + f );
+    }
+    return f;
+  }
+}
@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author David van Laatum
+ */
+public class SyncReceiverTest {
+
+  @Test
+  public void testPlan () {
+    SyncReceiver r = new SyncReceiver ( null, 0, 0 );
+    SyncReceiver.Plan p = r.plan ( "e1", Arrays.asList ( entry ( "a", "1" ),
+                                                         entry ( "b", "2" ) ) );
+    assertEquals ( Arrays.asList ( "a", "b" ), Arrays.asList ( p.send.keySet ()
+            .toArray () ) );
+    r.complete ( "e1", p, true, 10, 0, 0 );
+
+    p = r.plan ( "e2", Arrays.asList ( entry ( "a", "1" ), entry ( "c", "2" ),
+                                       entry ( "b", "3" ), entry ( "d", "4" ) ) );
+    assertEquals ( 1, p.unchanged );
+    assertEquals ( Collections.singletonMap ( "c", "b" ), p.copies );
+    assertEquals ( 1, p.collisions.size () );
+    assertTrue ( p.collisions.get ( 0 ).startsWith ( "b from e2" ) );
+    assertEquals ( Collections.singletonMap ( "d", "d" ), p.send );
+    r.complete ( "e2", p, false, 0, 0, 0 );
+
+    // a failed transfer gives its paths back
+    p = r.plan ( "e3", Arrays.asList ( entry ( "d", "5" ), entry ( "c", "2" ) ) );
+    assertEquals ( 0, p.collisions.size () );
+    assertEquals ( Collections.singletonMap ( "c", "b" ), p.copies );
+
+    // an executor may replace its own files
+    p = r.plan ( "e1", Arrays.asList ( entry ( "b", "6" ) ) );
+    assertEquals ( Collections.singletonMap ( "b", "b" ), p.send );
+    r.complete ( "e1", p, true, 10, 0, 0 );
+    p = r.plan ( "e4", Arrays.asList ( entry ( "x", "2" ) ) );
+    assertEquals ( Collections.singletonMap ( "x", "x" ), p.send );
+  }
+
+  @Test
+  public void testThrottle () {
+    SyncReceiver.Throttle t = new SyncReceiver.Throttle ( 1000 );
+    long now = System.nanoTime ();
+    assertEquals ( 0, t.reserve ( 1000, now ) );
+    assertEquals ( 500, t.reserve ( 500, now ) );
+    assertEquals ( 1000, t.reserve ( 500, now ) );
+    assertEquals ( 500, t.reserve ( 0, now + 500000000L ) );
+    assertEquals ( 0, t.reserve ( 0, now + 5000000000L ) );
+  }
+
+  private static SnapshotCache.Entry entry ( String path, String hash ) {
+    return new SnapshotCache.Entry ( path, hash, 5, false );
+  }
+}
@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.jenkinsci.plugins.DistributedTests.TaskCoordinator.Task;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hands out a task list to concurrent callers and checks every task is
+ * dispensed exactly once and in order. Throughput is measured by
+ * DispatchBenchmark.
+ *
+ * @author David van Laatum
+ */
+public class TaskCoordinatorContentionTest {
+
+  private static final int TASKS = 2000;
+  private static final int CALLERS = 8;
+
+  @Test
+  public void testContention () throws Exception {
+    TaskCoordinator tc = createCoordinator ();
+    int count = 0;
+    Set<Task> seen = new HashSet<Task> ();
+    for ( List<Task> l : dispense ( tc, CALLERS ) ) {
+      seen.addAll ( l );
+      count += l.size ();
+    }
+    assertEquals ( TASKS, seen.size () );
+    assertEquals ( TASKS, count );
+  }
+
+  @Test
+  public void testOrder () throws Exception {
+    TaskCoordinator tc = createCoordinator ();
+    List<Task> dispensed = dispense ( tc, 1 ).get ( 0 );
+    assertEquals ( TASKS, dispensed.size () );
+    for ( int i = 1; i < dispensed.size (); i++ ) {
+      assertEquals ( -1, dispensed.get ( i - 1 ).compareTo ( dispensed.get (
+                     i ) ) );
+    }
+  }
+
+  private TaskCoordinator createCoordinator () {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    for ( int i = 0; i < TASKS; i++ ) {
+      tc.addTask ( tc.new Task ( "Task" + i, Collections
+                                 .<String, String>emptyMap () ) );
+    }
+    tc.queueTasks ();
+    return tc;
+  }
+
+  private List<List<Task>> dispense ( final TaskCoordinator tc, int callers )
+          throws InterruptedException {
+    final CountDownLatch ready = new CountDownLatch ( 1 );
+    final List<List<Task>> rt = new ArrayList<List<Task>> ();
+    List<Thread> threads = new ArrayList<Thread> ();
+    for ( int i = 0; i < callers; i++ ) {
+      final int executor = i;
+      final List<Task> mine = new ArrayList<Task> ();
+      rt.add ( mine );
+      Thread t = new Thread () {
+        @Override
+        public void run () {
+          try {
+            ready.await ();
+          } catch ( InterruptedException ex ) {
+            return;
+          }
+          Task task = tc.getNextTask ( executor );
+          while ( task != null ) {
+            mine.add ( task );
+            task = tc.getNextTask ( executor );
+          }
+        }
+      };
+      t.start ();
+      threads.add ( t );
+    }
+    ready.countDown ();
+    for ( Thread t : threads ) {
+      t.join ();
+    }
+    return rt;
+  }
+}
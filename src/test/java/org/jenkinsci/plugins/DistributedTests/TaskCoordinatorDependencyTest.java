@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.util.NullStream;
+import org.jenkinsci.plugins.DistributedTests.TaskCoordinator.Task;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author David van Laatum
+ */
+public class TaskCoordinatorDependencyTest {
+
+  @Test
+  public void testRelease () {
+    TaskCoordinator tc = createCoordinator ();
+    Task a = tc.getNextTask ( 0 );
+    assertEquals ( "a", a.getName () );
+    assertEquals ( "d", tc.getNextTask ( 0 ).getName () );
+    assertNull ( tc.getNextTask ( 0 ) );
+
+    tc.complete ( a, Result.SUCCESS );
+    Task b = tc.getNextTask ( 0 );
+    assertEquals ( "b", b.getName () );
+    assertNull ( tc.getNextTask ( 0 ) );
+
+    tc.complete ( b, Result.SUCCESS );
+    assertEquals ( "c", tc.getNextTask ( 0 ).getName () );
+    assertNull ( tc.getNextTask ( 0 ) );
+  }
+
+  @Test
+  public void testFailFast () {
+    TaskCoordinator tc = createCoordinator ();
+    Task a = tc.getNextTask ( 0 );
+    tc.getNextTask ( 0 );
+    tc.complete ( a, Result.FAILURE );
+    assertNull ( tc.getNextTask ( 0 ) );
+    assertEquals ( Result.NOT_BUILT, tc.getTask ( "b" ).getResult () );
+    assertEquals ( Result.NOT_BUILT, tc.getTask ( "c" ).getResult () );
+    assertEquals ( true, tc.getTask ( "c" ).hasRun () );
+  }
+
+  @Test
+  public void testCycle () {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    tc.addTask ( tc.new Task ( "x", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "y" ) ) );
+    tc.addTask ( tc.new Task ( "y", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "x" ) ) );
+    tc.addTask ( tc.new Task ( "z", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "x" ) ) );
+    try {
+      tc.queueTasks ();
+      fail ( "Cycle not detected" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "Task dependencies form a cycle: x -> y -> x", ex
+                     .getMessage () );
+    }
+  }
+
+  @Test
+  public void testCycleBehindTask () {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    tc.addTask ( tc.new Task ( "a", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "b" ) ) );
+    tc.addTask ( tc.new Task ( "b", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "c" ) ) );
+    tc.addTask ( tc.new Task ( "c", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "d" ) ) );
+    tc.addTask ( tc.new Task ( "d", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "c" ) ) );
+    try {
+      tc.queueTasks ();
+      fail ( "Cycle not detected" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "Task dependencies form a cycle: c -> d -> c", ex
+                     .getMessage () );
+    }
+  }
+
+  @Test
+  public void testUnknown () {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    tc.addTask ( tc.new Task ( "x", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "y" ) ) );
+    try {
+      tc.queueTasks ();
+      fail ( "Unknown dependency not detected" );
+    } catch ( IllegalArgumentException ex ) {
+      assertEquals ( "Task x depends on unknown task y", ex.getMessage () );
+    }
+  }
+
+  /**
+   * a, b and c form a chain, d is independent. With equal predictions the
+   * head of the chain goes first as it has the longest critical path.
+   */
+  private TaskCoordinator createCoordinator () {
+    TaskCoordinator tc = new TaskCoordinator ( null );
+    tc.setListener ( new StreamBuildListener ( new NullStream () ) );
+    tc.addTask ( tc.new Task ( "d", Collections.<String, String>emptyMap () ) );
+    tc.addTask ( tc.new Task ( "a", Collections.<String, String>emptyMap () ) );
+    tc.addTask ( tc.new Task ( "b", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "a" ) ) );
+    tc.addTask ( tc.new Task ( "c", Collections.<String, String>emptyMap (),
+                               Arrays.asList ( "b" ) ) );
+    tc.queueTasks ();
+    return tc;
+  }
+}
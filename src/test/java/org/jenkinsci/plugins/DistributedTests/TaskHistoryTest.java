@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import hudson.model.Result;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author David van Laatum
+ */
+public class TaskHistoryTest {
+
+  @Test
+  public void testReload () throws IOException {
+    File f = createFile ();
+    TaskHistory h = new TaskHistory ( f );
+    assertFalse ( h.load () );
+    h.rebuild ( Arrays.asList ( build ( 1, Result.SUCCESS, 100 ) ) );
+    h.record ( build ( 2, Result.FAILURE, 200 ) );
+    h.record ( build ( 3, Result.UNSTABLE, 300 ) );
+    h.delete ( 1 );
+
+    h = new TaskHistory ( f );
+    assertTrue ( h.load () );
+    assertEquals ( Arrays.asList ( 3 ), h.getBuilds ( 4, 5 ) );
+    assertEquals ( 2, h.getHistory ( "a" ).size () );
+    assertEquals ( 3, h.getHistory ( "a" ).get ( 0 ).getBuildnumber () );
+    assertEquals ( Long.valueOf ( 200 ), h.getEntry ( "a", 2 ).getDuration () );
+    assertEquals ( "node1", h.getEntry ( "a", 2 ).getNode () );
+    assertNull ( h.getEntry ( "a", 1 ) );
+  }
+
+  @Test
+  public void testCompact () throws IOException {
+    File f = createFile ();
+    TaskHistory h = new TaskHistory ( f );
+    h.rebuild ( Arrays.asList ( build ( 1, Result.SUCCESS, 100 ) ) );
+    long one = f.length ();
+    for ( int i = 2; i <= 4; i++ ) {
+      h.record ( build ( i, Result.SUCCESS, 100 ) );
+      h.delete ( i - 1 );
+    }
+    assertTrue ( f.length () > one * 3 );
+
+    h = new TaskHistory ( f );
+    assertTrue ( h.load () );
+    assertEquals ( one, f.length () );
+    assertEquals ( Arrays.asList ( 4 ), h.getBuilds ( 5, 5 ) );
+  }
+
+  @Test
+  public void testPartialRecord () throws IOException {
+    File f = createFile ();
+    TaskHistory h = new TaskHistory ( f );
+    h.rebuild ( Arrays.asList ( build ( 1, Result.SUCCESS, 100 ) ) );
+    h.record ( build ( 2, Result.SUCCESS, 200 ) );
+    FileOutputStream out = new FileOutputStream ( f, true );
+    try {
+      out.write ( new byte[] { 1, 0, 0 } );
+    } finally {
+      out.close ();
+    }
+
+    h = new TaskHistory ( f );
+    assertTrue ( h.load () );
+    assertEquals ( Arrays.asList ( 2, 1 ), h.getBuilds ( 3, 5 ) );
+    h.record ( build ( 3, Result.SUCCESS, 300 ) );
+    h = new TaskHistory ( f );
+    h.load ();
+    assertEquals ( Arrays.asList ( 3, 2, 1 ), h.getBuilds ( 4, 5 ) );
+  }
+
+  private static TaskHistory.Build build ( int number, Result result,
+                                           long duration ) {
+    return new TaskHistory.Build ( number, result, Collections.singletonList (
+                                   new TaskHistory.Entry ( "a", number,
+                                                           duration, result,
+                                                           "node1", true ) ) );
+  }
+
+  private static File createFile () throws IOException {
+    File f = File.createTempFile ( "taskhistory", ".dat" );
+    f.deleteOnExit ();
+    if ( !f.delete () ) {
+      throw new IOException ( "Failed to delete " + f );
+    }
+    return f;
+  }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author David van Laatum
+ */
+public class TaskListReaderTest {
+
+  @Test
+  public void testRead () throws IOException {
+    TaskListReader r = new TaskListReader ( new StringReader (
+            "[ { \"name\": \"Task1\", \"env\": { \"VAR1\": \"a\\\"b\\u0041\","
+            + " \"VAR2\": 5, \"VAR3\": null } },\n"
+            + "  { \"extra\": { \"x\": [ 1, { \"y\": true } ] },"
+            + " \"name\": \"Task2\", \"dependsOn\": [ \"Task1\" ] },\n"
+            + "  { \"name\": \"Task3\", \"dependsOn\": \"Task2\" } ]" ) );
+    TaskListReader.Entry e = r.next ();
+    assertEquals ( "Task1", e.getName () );
+    assertEquals ( "a\"bA", e.getEnv ().get ( "VAR1" ) );
+    assertEquals ( "5", e.getEnv ().get ( "VAR2" ) );
+    assertEquals ( 2, e.getEnv ().size () );
+    assertNull ( e.getDependsOn () );
+    e = r.next ();
+    assertEquals ( "Task2", e.getName () );
+    assertEquals ( Arrays.asList ( "Task1" ), e.getDependsOn () );
+    assertEquals ( Arrays.asList ( "Task2" ), r.next ().getDependsOn () );
+    assertNull ( r.next () );
+    assertNull ( r.next () );
+  }
+
+  @Test
+  public void testNullDependencies () throws IOException {
+    TaskListReader r = new TaskListReader ( new StringReader (
+            "[ { \"name\": \"Task1\", \"dependsOn\": null },"
+            + " { \"name\": \"Task2\", \"dependsOn\": [ null ] },"
+            + " { \"name\": \"Task3\","
+            + " \"dependsOn\": [ \"Task1\", null, \"Task2\" ] } ]" ) );
+    assertNull ( r.next ().getDependsOn () );
+    assertNull ( r.next ().getDependsOn () );
+    assertEquals ( Arrays.asList ( "Task1", "Task2" ), r.next ()
+                   .getDependsOn () );
+  }
+
+  @Test
+  public void testEmpty () throws IOException {
+    assertNull ( new TaskListReader ( new StringReader ( " [ ] " ) ).next () );
+  }
+
+  @Test
+  public void testMalformed () {
+    TaskListReader r = new TaskListReader ( new StringReader (
+            "[\n{ \"name\": \"Task1\" }\n{ \"name\": \"Task2\" } ]" ) );
+    try {
+      r.next ();
+      r.next ();
+      fail ( "Missing comma not detected" );
+    } catch ( IOException ex ) {
+      assertTrue ( ex.getMessage (), ex.getMessage ().startsWith (
+                   "Malformed task list at line 3" ) );
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import hudson.model.Result;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author David van Laatum
+ */
+public class TaskResultsTest {
+
+  @Test
+  public void testParse () {
+    TaskResults r = TaskResults.parse ( "# results\n"
+                                        + "a SUCCESS 1200\n"
+                                        + "\n"
+                                        + "b unstable\r\n"
+                                        + "c FAILURE -5\n"
+                                        + "d BROKEN 10\n"
+                                        + "e\n"
+                                        + "f g  FAILURE 30\n"
+                                        + "h 40\n", null );
+    assertEquals ( Result.SUCCESS, r.get ( "a" ).getResult () );
+    assertEquals ( 1200, r.get ( "a" ).getDuration () );
+    assertEquals ( Result.UNSTABLE, r.get ( "b" ).getResult () );
+    assertEquals ( -1, r.get ( "b" ).getDuration () );
+    assertNull ( r.get ( "c" ) );
+    assertNull ( r.get ( "d" ) );
+    assertNull ( r.get ( "e" ) );
+    assertEquals ( Result.FAILURE, r.get ( "f g" ).getResult () );
+    assertEquals ( 30, r.get ( "f g" ).getDuration () );
+    assertNull ( r.get ( "h" ) );
+    assertTrue ( TaskResults.parse ( null, null ).isEmpty () );
+  }
+}
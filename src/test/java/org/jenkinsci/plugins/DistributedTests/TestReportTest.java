@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.DistributedTests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author David van Laatum
+ */
+public class TestReportTest {
+
+  @Test
+  public void testParse () throws IOException {
+    TestReport.Suite s = TestReport.parse ( write (
+            "<testsuites><testsuite name=\"a\">"
+            + "<testcase classname=\"a.A\" name=\"one\" time=\"1.5\"/>"
+            + "<testcase classname=\"a.A\" name=\"two\" time=\"0.5\">"
+            + "<failure message=\"x\">trace</failure></testcase>"
+            + "<testcase classname=\"a.A\" name=\"three\"><skipped/></testcase>"
+            + "</testsuite><testsuite name=\"b\">"
+            + "<testcase classname=\"b.B\" name=\"four\"><error/></testcase>"
+            + "</testsuite></testsuites>" ) );
+    assertEquals ( 4, s.getTests () );
+    assertEquals ( 1, s.getSkipped () );
+    assertEquals ( Arrays.asList ( "a.A.two", "b.B.four" ), s.getFailures () );
+  }
+
+  @Test
+  public void testExternalEntities () throws IOException {
+    File missing = new File ( System.getProperty ( "java.io.tmpdir" ),
+                              "no-such-dir/secret" );
+    String uri = missing.toURI ().toString ();
+    TestReport.Suite s = TestReport.parse ( write (
+            "<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE testsuite SYSTEM \"" + uri + ".dtd\" ["
+            + "<!ENTITY secret SYSTEM \"" + uri + "\">"
+            + "<!ENTITY % remote SYSTEM \"" + uri + ".ent\"> %remote;]>"
+            + "<testsuite><testcase name=\"a\">"
+            + "<failure>&secret;</failure></testcase></testsuite>" ) );
+    assertEquals ( 1, s.getTests () );
+    assertEquals ( Arrays.asList ( "a" ), s.getFailures () );
+  }
+
+  @Test
+  public void testReplace () throws IOException {
+    TestReport r = new TestReport ( "**/TEST-*.xml" );
+    r.add ( Collections.singletonMap ( "TEST-a.xml", TestReport.parse ( write (
+            "<testsuite><testcase name=\"a\"><failure/></testcase>"
+            + "<testcase name=\"b\"/></testsuite>" ) ) ) );
+    assertEquals ( 2, r.getTotal () );
+    assertEquals ( 1, r.getFailed () );
+    r.add ( Collections.singletonMap ( "TEST-a.xml", TestReport.parse ( write (
+            "<testsuite><testcase name=\"a\"/><testcase name=\"b\"/>"
+            + "<testcase name=\"c\"><skipped/></testcase></testsuite>" ) ) ) );
+    assertEquals ( 3, r.getTotal () );
+    assertEquals ( 0, r.getFailed () );
+    assertEquals ( 2, r.getPassed () );
+    assertEquals ( 1, r.getFiles () );
+  }
+
+  private static File write ( String content ) throws IOException {
+    File f = File.createTempFile ( "TEST-", ".xml" );
+    f.deleteOnExit ();
+    FileOutputStream out = new FileOutputStream ( f );
+    try {
+      out.write ( content.getBytes ( "UTF-8" ) );
+    } finally {
+      out.close ();
+    }
+    return f;
+  }
+}